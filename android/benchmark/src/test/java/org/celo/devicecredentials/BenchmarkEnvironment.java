@@ -0,0 +1,60 @@
+package org.celo.devicecredentials;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.Security;
+
+/**
+ * Runs {@link AndroidKeyStoreHelper} on the JVM, with its keys kept in memory by
+ * {@link SoftwareKeyStoreBackend} and its files in a temporary directory standing in for the
+ * app's files directory.
+ */
+final class BenchmarkEnvironment {
+    final File directory;
+    final FileStore fileStore;
+
+    private BenchmarkEnvironment(File directory) {
+        this.directory = directory;
+        fileStore = new FileStore(directory);
+    }
+
+    /**
+     * Provides the PKCS7Padding of the CBC keys, the JDK only knows it as PKCS5Padding.
+     */
+    static synchronized void addProviders() {
+        if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+    }
+
+    static BenchmarkEnvironment install() throws IOException {
+        addProviders();
+        BenchmarkEnvironment environment = new BenchmarkEnvironment(
+                Files.createTempDirectory("devicecredentials").toFile());
+        AndroidKeyStoreHelper.setBackends(new SoftwareKeyStoreBackend(), environment.fileStore);
+        return environment;
+    }
+
+    /**
+     * Creates keyName with options, failing the benchmark if that doesn't work.
+     */
+    void createKey(String keyName, KeyOptions options) {
+        if (!AndroidKeyStoreHelper.createKey(null, keyName, options)) {
+            throw new IllegalStateException("Failed to create key " + keyName);
+        }
+    }
+
+    void uninstall() {
+        AndroidKeyStoreHelper.setBackends(new AndroidKeyStoreBackend(), null);
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
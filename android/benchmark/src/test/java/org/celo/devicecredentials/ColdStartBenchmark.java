@@ -0,0 +1,62 @@
+package org.celo.devicecredentials;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The first operation after the process starts, with and without
+ * {@link AndroidKeyStoreHelper#prewarm} having run beforehand, as the module does in the
+ * background when created with prewarm enabled. Every fork is a fresh JVM measuring a single
+ * operation, so nothing has resolved the providers or the ciphers yet unless prewarm did.
+ * Both variants include syncing the vault to disk, which is most of what's left once warm.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(20)
+public class ColdStartBenchmark {
+    private static final String KEY_NAME = "benchmark";
+
+    @Param({"CBC", "GCM"})
+    public String cipherMode;
+
+    @Param({"false", "true"})
+    public boolean prewarm;
+
+    private BenchmarkEnvironment environment;
+
+    @Setup
+    public void setUp() throws Exception {
+        environment = BenchmarkEnvironment.install();
+        // Creating the key only resolves the key generator, which prewarm resolves too.
+        environment.createKey(KEY_NAME,
+                new KeyOptions(0, false, CipherMode.valueOf(cipherMode), false));
+        if (prewarm && !AndroidKeyStoreHelper.prewarm(KEY_NAME)) {
+            throw new IllegalStateException("Failed to warm up");
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        environment.uninstall();
+    }
+
+    @Benchmark
+    public boolean firstStoreSecret() throws Exception {
+        return AndroidKeyStoreHelper.storeSecret(null, KEY_NAME, "pin", "123456");
+    }
+}
@@ -0,0 +1,73 @@
+package org.celo.devicecredentials;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import java.security.Key;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encrypting a PIN with a cipher and creating a key generator taken from {@link CryptoPool},
+ * against looking them up in the provider registry for every use as was done before.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CryptoPoolBenchmark {
+    private static final byte[] PIN = "123456".getBytes();
+
+    @State(Scope.Thread)
+    public static class CipherState {
+        @Param({"CBC", "GCM"})
+        public String cipherMode;
+
+        String transformation;
+        Key key;
+
+        @Setup
+        public void setUp() throws Exception {
+            BenchmarkEnvironment.addProviders();
+            transformation = CipherMode.valueOf(cipherMode).transformation;
+            KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+            keyGenerator.init(256);
+            key = keyGenerator.generateKey();
+        }
+    }
+
+    @Benchmark
+    public byte[] encryptPooled(CipherState state) throws Exception {
+        Cipher cipher = CryptoPool.cipher(state.transformation, state.key);
+        cipher.init(Cipher.ENCRYPT_MODE, state.key);
+        return cipher.doFinal(PIN);
+    }
+
+    @Benchmark
+    public byte[] encryptPerCall(CipherState state) throws Exception {
+        Cipher cipher = Cipher.getInstance(state.transformation);
+        cipher.init(Cipher.ENCRYPT_MODE, state.key);
+        return cipher.doFinal(PIN);
+    }
+
+    @Benchmark
+    public KeyGenerator keyGeneratorPooled() throws Exception {
+        return CryptoPool.keyGenerator("AES", null);
+    }
+
+    @Benchmark
+    public KeyGenerator keyGeneratorPerCall() throws Exception {
+        return KeyGenerator.getInstance("AES");
+    }
+}
@@ -0,0 +1,102 @@
+package org.celo.devicecredentials;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading a stored file the way every retrieve does, with {@link FileStore#readFully}, against
+ * the 1 KB copy loop through a ByteArrayOutputStream it replaced and against reading through a
+ * pooled direct buffer. The smallest size is about that of a vault holding a PIN.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileReadBenchmark {
+    private static final String FILE_NAME = "benchmark";
+
+    @Param({"96", "4096", "65536"})
+    public int size;
+
+    private BenchmarkEnvironment environment;
+
+    @Setup
+    public void setUp() throws Exception {
+        environment = BenchmarkEnvironment.install();
+        byte[] contents = new byte[size];
+        new Random(42).nextBytes(contents);
+        environment.fileStore.replace(FILE_NAME, contents);
+    }
+
+    @TearDown
+    public void tearDown() {
+        environment.uninstall();
+    }
+
+    @Benchmark
+    public byte[] readFully() throws IOException {
+        return environment.fileStore.readFully(FILE_NAME);
+    }
+
+    @Benchmark
+    public byte[] pooledBuffer() throws IOException {
+        FileInputStream fis = environment.fileStore.openInput(FILE_NAME);
+        try {
+            FileChannel channel = fis.getChannel();
+            int size = (int) channel.size();
+            ByteBuffer buffer = BufferPool.acquire(size);
+            try {
+                buffer.limit(size);
+                long position = 0;
+                while (buffer.hasRemaining()) {
+                    position += channel.read(buffer, position);
+                }
+                byte[] contents = new byte[size];
+                buffer.flip();
+                buffer.get(contents);
+                return contents;
+            } finally {
+                BufferPool.release(buffer);
+            }
+        } finally {
+            fis.close();
+        }
+    }
+
+    @Benchmark
+    public byte[] copyLoop() throws IOException {
+        FileInputStream fis = environment.fileStore.openInput(FILE_NAME);
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            byte[] buf = new byte[1024];
+            int numRead = fis.read(buf);
+            while (numRead > 0) {
+                baos.write(buf, 0, numRead);
+                numRead = fis.read(buf);
+            }
+            return baos.toByteArray();
+        } finally {
+            fis.close();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package org.celo.devicecredentials;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The full path of storing and retrieving a secret: loading and saving the vault, resolving the
+ * key, and encrypting or decrypting, with the data key wrapped and unwrapped every time in
+ * envelope mode. The key needs the user for every use, so nothing is served from the caches.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StoreRetrieveBenchmark {
+    private static final String KEY_NAME = "benchmark";
+    private static final String SLOT = "pin";
+    private static final String SECRET = "123456";
+
+    @Param({"CBC", "GCM"})
+    public String cipherMode;
+
+    @Param({"false", "true"})
+    public boolean envelope;
+
+    private BenchmarkEnvironment environment;
+
+    @Setup
+    public void setUp() throws Exception {
+        environment = BenchmarkEnvironment.install();
+        environment.createKey(KEY_NAME,
+                new KeyOptions(0, false, CipherMode.valueOf(cipherMode), envelope));
+        if (!AndroidKeyStoreHelper.storeSecret(null, KEY_NAME, SLOT, SECRET)) {
+            throw new IllegalStateException("Failed to store the secret");
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        environment.uninstall();
+    }
+
+    @Benchmark
+    public boolean storeSecret() throws Exception {
+        return AndroidKeyStoreHelper.storeSecret(null, KEY_NAME, SLOT, SECRET);
+    }
+
+    @Benchmark
+    public String retrieveSecret() throws Exception {
+        return AndroidKeyStoreHelper.retrieveSecret(null, KEY_NAME, SLOT);
+    }
+}
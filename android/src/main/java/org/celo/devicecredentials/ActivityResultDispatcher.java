@@ -0,0 +1,131 @@
+package org.celo.devicecredentials;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.util.Log;
+
+import com.facebook.react.bridge.ActivityEventListener;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The module's only activity event listener. Every activity started for a result gets its own
+ * request code, and the result is routed to the callback registered for that code, so the
+ * module never piles up listeners however many operations it runs.
+ *
+ * A callback which hasn't received its result after {@link #RESULT_TIMEOUT_MILLIS}, e.g.
+ * because the activity was destroyed before returning, gets {@link Activity#RESULT_CANCELED}.
+ * Timeouts run on the given scheduler, normally the one of {@link Clock#get()}, so a simulated
+ * clock controls them too.
+ */
+class ActivityResultDispatcher implements ActivityEventListener {
+    private static final String TAG = "ActivityResultDispatcher";
+    static final long RESULT_TIMEOUT_MILLIS = 10 * 60 * 1000;
+
+    // Request codes must fit in 16 bits. A range of its own keeps them apart from the codes used
+    // by the host app and other modules.
+    private static final int FIRST_REQUEST_CODE = 0x4300;
+    private static final int REQUEST_CODE_COUNT = 0x100;
+
+    interface Callback {
+        /**
+         * Called on the main thread with the activity's result, or on the scheduler's thread
+         * with {@link Activity#RESULT_CANCELED} on timeout.
+         */
+        void onActivityResult(int resultCode);
+    }
+
+    private final ScheduledExecutorService scheduler;
+    private final Map<Integer, Pending> pending = new HashMap<>();
+    private int nextRequestCode = FIRST_REQUEST_CODE;
+
+    ActivityResultDispatcher(ScheduledExecutorService scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * @return the request code to start the activity with, or -1 if too many activities are
+     * waiting for their result
+     */
+    synchronized int register(Callback callback) {
+        if (pending.size() >= REQUEST_CODE_COUNT) {
+            Log.w(TAG, "register/too many pending activity results");
+            return -1;
+        }
+        while (pending.containsKey(nextRequestCode)) {
+            advanceRequestCode();
+        }
+        final int requestCode = nextRequestCode;
+        advanceRequestCode();
+
+        ScheduledFuture<?> timeout = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                Log.w(TAG, "No activity result for request " + requestCode);
+                dispatch(requestCode, Activity.RESULT_CANCELED);
+            }
+        }, RESULT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        pending.put(requestCode, new Pending(callback, timeout));
+        return requestCode;
+    }
+
+    /**
+     * Drops the callback registered for requestCode without calling it, e.g. when the activity
+     * could not be started.
+     */
+    synchronized void cancel(int requestCode) {
+        Pending cancelled = pending.remove(requestCode);
+        if (cancelled != null) {
+            cancelled.timeout.cancel(false);
+        }
+    }
+
+    synchronized int pendingCount() {
+        return pending.size();
+    }
+
+    @Override
+    public void onActivityResult(Activity activity, int requestCode, int resultCode,
+                                 Intent intent) {
+        dispatch(requestCode, resultCode);
+    }
+
+    @Override
+    public void onNewIntent(Intent intent) {
+        // Do nothing
+    }
+
+    private void dispatch(int requestCode, int resultCode) {
+        Pending result;
+        synchronized (this) {
+            result = pending.remove(requestCode);
+        }
+        if (result == null) {
+            // Not ours, or already timed out.
+            return;
+        }
+        result.timeout.cancel(false);
+        result.callback.onActivityResult(resultCode);
+    }
+
+    private void advanceRequestCode() {
+        nextRequestCode++;
+        if (nextRequestCode == FIRST_REQUEST_CODE + REQUEST_CODE_COUNT) {
+            nextRequestCode = FIRST_REQUEST_CODE;
+        }
+    }
+
+    private static class Pending {
+        final Callback callback;
+        final ScheduledFuture<?> timeout;
+
+        Pending(Callback callback, ScheduledFuture<?> timeout) {
+            this.callback = callback;
+            this.timeout = timeout;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package org.celo.devicecredentials;
+
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyInfo;
+import android.security.keystore.KeyProperties;
+import android.support.annotation.Nullable;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyStore;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Keys stored in the Android Key Store, which can only be used after the user has authenticated
+ * with their device credentials.
+ */
+class AndroidKeyStoreBackend implements KeyStoreBackend {
+    // Loading the keystore is a binder call into the keystore daemon, so it is done once per
+    // process and reused.
+    private final Object keyStoreLock = new Object();
+    private volatile KeyStore keyStore;
+
+    @Nullable
+    @Override
+    public Key getKey(String keyName) throws GeneralSecurityException, IOException {
+        return getKeyStore().getKey(keyName, null);
+    }
+
+    @Override
+    public void generateKey(String keyName, KeyOptions options) throws GeneralSecurityException {
+        KeyGenerator keyGenerator = CryptoPool.keyGenerator(KeyProperties.KEY_ALGORITHM_AES,
+                Constants.KEYSTORE_PROVIDER_1);
+
+        // Set the alias of the entry in Android KeyStore where the key will appear
+        // and the constrains (purposes) in the constructor of the Builder
+        KeyGenParameterSpec.Builder builder = new KeyGenParameterSpec.Builder(keyName,
+                KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                .setBlockModes(options.cipherMode.blockMode)
+                .setUserAuthenticationRequired(true)
+                // Require that the user has unlocked in the last reauthenticationTimeoutInSecs
+                .setUserAuthenticationValidityDurationSeconds(options.reauthenticationTimeoutInSecs)
+                .setEncryptionPaddings(options.cipherMode.encryptionPadding);
+        if (android.os.Build.VERSION.SDK_INT >= 24) {
+            builder.setInvalidatedByBiometricEnrollment(
+                    options.invalidateKeyByNewBiometricEnrollment);
+        }
+        keyGenerator.init(builder.build());
+        keyGenerator.generateKey();
+    }
+
+    @Override
+    public void deleteKey(String keyName) throws GeneralSecurityException, IOException {
+        getKeyStore().deleteEntry(keyName);
+    }
+
+    @Override
+    public boolean containsAlias(String keyName) throws GeneralSecurityException, IOException {
+        return getKeyStore().containsAlias(keyName);
+    }
+
+    @Override
+    public List<String> aliases() throws GeneralSecurityException, IOException {
+        return Collections.list(getKeyStore().aliases());
+    }
+
+    @Override
+    public KeyDescription describeKey(String keyName, Key key) throws GeneralSecurityException {
+        SecretKeyFactory factory = CryptoPool.secretKeyFactory(key.getAlgorithm(),
+                Constants.KEYSTORE_PROVIDER_1);
+        KeyInfo keyInfo = (KeyInfo) factory.getKeySpec((SecretKey) key, KeyInfo.class);
+        return new KeyDescription(CipherMode.fromBlockModes(keyInfo.getBlockModes()),
+                keyInfo.getUserAuthenticationValidityDurationSeconds());
+    }
+
+    @Override
+    public void checkKeyUsable(Key key) {
+        // Checked by the keystore when the cipher is initialized.
+    }
+
+    @Override
+    public void prewarm() throws GeneralSecurityException, IOException {
+        getKeyStore();
+        CryptoPool.keyGenerator(KeyProperties.KEY_ALGORITHM_AES, Constants.KEYSTORE_PROVIDER_1);
+        CryptoPool.secretKeyFactory(KeyProperties.KEY_ALGORITHM_AES,
+                Constants.KEYSTORE_PROVIDER_1);
+    }
+
+    private KeyStore getKeyStore() throws GeneralSecurityException, IOException {
+        KeyStore loadedKeyStore = keyStore;
+        if (loadedKeyStore != null) {
+            return loadedKeyStore;
+        }
+        synchronized (keyStoreLock) {
+            if (keyStore == null) {
+                long start = Metrics.begin(Metrics.Phase.KEYSTORE_LOAD);
+                try {
+                    KeyStore newKeyStore = KeyStore.getInstance(Constants.KEYSTORE_PROVIDER_1);
+                    newKeyStore.load(null);
+                    keyStore = newKeyStore;
+                } finally {
+                    Metrics.end(Metrics.Phase.KEYSTORE_LOAD, start);
+                }
+            }
+            return keyStore;
+        }
+    }
+}
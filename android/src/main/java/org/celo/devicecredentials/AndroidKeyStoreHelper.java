@@ -1,24 +1,26 @@
 package org.celo.devicecredentials;
 
 import android.app.Activity;
-import android.app.AlertDialog;
-import android.app.KeyguardManager;
-import android.app.admin.DevicePolicyManager;
 import android.content.Context;
-import android.content.DialogInterface;
-import android.content.Intent;
-import android.security.keystore.KeyGenParameterSpec;
-import android.security.keystore.KeyProperties;
+import android.security.keystore.KeyPermanentlyInvalidatedException;
 import android.security.keystore.UserNotAuthenticatedException;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
 import javax.crypto.*;
-import javax.crypto.spec.IvParameterSpec;
 import java.io.*;
 import java.nio.charset.Charset;
 import java.security.*;
-import java.security.cert.CertificateException;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 public class AndroidKeyStoreHelper {
@@ -26,17 +28,75 @@ public class AndroidKeyStoreHelper {
     private static final String PIN_ENCRYPTED_FILENAME = "pin_encrypted.txt";
     private static final String PIN_IV_FILENAME = "pin_iv.txt";
 
+    /**
+     * The slot used by {@link #storePin} and {@link #retrievePin}.
+     */
+    public static final String DEFAULT_SLOT = "pin";
+
+    private static final Object vaultLock = new Object();
+
+    private static volatile KeyStoreBackend keyStoreBackend = new AndroidKeyStoreBackend();
+    private static volatile Keyguard keyguard = new AndroidKeyguard();
+    @Nullable
+    private static volatile FileStore fileStoreOverride;
+
+    // Resolving a key is a binder call into the keystore daemon, so key handles are kept once
+    // resolved. Entries are dropped whenever a key is created, deleted or found to be unrecoverable.
+    private static final Map<String, Key> cachedKeys = new ConcurrentHashMap<>();
+    private static final Map<String, KeyStoreBackend.KeyDescription> cachedKeyDescriptions =
+            new ConcurrentHashMap<>();
+
+    private static final SecretCache secretCache = new SecretCache();
+    private static volatile long secretCacheTtlMillis = 0;
+
+    // Envelope mode data keys are AES-256 and encrypt secrets with GCM in process.
+    private static final int DATA_KEY_SIZE_BYTES = 32;
+    private static final int DATA_KEY_IV_SIZE_BYTES = 12;
+    private static final String DATA_KEY_SLOT = "";
+    private static final int ROTATION_BATCH_SIZE = 16;
+    private static final SecureRandom secureRandom = new SecureRandom();
+
+    private static final AuthSessionTracker authSessions = new AuthSessionTracker();
+
+    // Unwrapped data keys, kept no longer than the authentication window of the keystore key
+    // wrapping them and cleared when the app goes to the background.
+    private static final SecretCache dataKeyCache = new SecretCache();
+
+    /**
+     * Replaces the Android Key Store and the app's files directory, e.g. with
+     * {@link SoftwareKeyStoreBackend} and a temporary directory to run on a plain JVM. A null
+     * fileStore goes back to the app's files directory.
+     */
+    static void setBackends(KeyStoreBackend backend, @Nullable FileStore fileStore) {
+        setBackends(backend, fileStore, keyguard);
+    }
+
+    /**
+     * Same as {@link #setBackends(KeyStoreBackend, FileStore)}, also replacing the screen lock,
+     * e.g. with the simulated one the unit tests run against.
+     */
+    static void setBackends(KeyStoreBackend backend, @Nullable FileStore fileStore,
+                            Keyguard newKeyguard) {
+        keyStoreBackend = backend;
+        fileStoreOverride = fileStore;
+        keyguard = newKeyguard;
+        cachedKeys.clear();
+        cachedKeyDescriptions.clear();
+        secretCache.clear();
+        dataKeyCache.clear();
+        authSessions.reset();
+    }
+
+    private static FileStore getFileStore(Context context) {
+        FileStore fileStore = fileStoreOverride;
+        return fileStore != null ? fileStore : FileStore.forContext(context);
+    }
 
     /**
      * @see #makeDeviceSecure(Context, String, String)
      */
     public static boolean isDeviceSecure(Context context) {
-        @Nullable KeyguardManager keyguardManager = getKeyguardManager(context);
-        if (keyguardManager == null) {
-            Log.w(TAG, "Keyguard manager is null");
-            return false;
-        }
-        return keyguardManager.isDeviceSecure();
+        return keyguard.isDeviceSecure(context);
     }
 
     public static void makeDeviceSecure(Activity activity,
@@ -44,26 +104,15 @@ public class AndroidKeyStoreHelper {
                                         String buttonLabel,
                                         int requestCodeForReturn,
                                         MakeDeviceSecureCallback callback) {
-        Intent buttonActionIntent = new Intent(DevicePolicyManager.ACTION_SET_NEW_PASSWORD);
-        showPrompt(activity, description, buttonLabel, buttonActionIntent, requestCodeForReturn,
+        keyguard.makeDeviceSecure(activity, description, buttonLabel, requestCodeForReturn,
                 callback);
     }
 
-    public static void authenticateUser(Activity activity, int requestCode) {
-        @Nullable KeyguardManager keyguardManager = getKeyguardManager(activity);
-        if (keyguardManager == null) {
-            throw new RuntimeException("Unable to access Keyguard manager");
-        }
-        String title = null;
-        String description = null;
-        Intent intent = keyguardManager.createConfirmDeviceCredentialIntent(title, description);
-        if (intent != null) {
-            activity.startActivityForResult(intent, requestCode);
-        }
-    }
-
-    private static KeyguardManager getKeyguardManager(Context context) {
-        return (KeyguardManager) context.getSystemService(Context.KEYGUARD_SERVICE);
+    /**
+     * @return whether the lock screen was started, it isn't if the device is not secure
+     */
+    public static boolean authenticateUser(Activity activity, int requestCode) {
+        return keyguard.authenticateUser(activity, requestCode);
     }
 
     /**
@@ -72,153 +121,1110 @@ public class AndroidKeyStoreHelper {
      */
     public static boolean createKey(String keyName, int reauthenticationTimeoutInSecs,
                                     boolean invalidateKeyByNewBiometricEnrollment) {
-        KeyStore keyStore = getKeyStore();
-        if (keyStore == null) {
-            Log.e(TAG, "createKey/cannot access keystore");
-            return false;
-        }
+        return createKey(keyName, new KeyOptions(reauthenticationTimeoutInSecs,
+                invalidateKeyByNewBiometricEnrollment, CipherMode.CBC));
+    }
 
+    /**
+     * Same as {@link #createKey(String, int, boolean)} but the key is restricted to the cipher
+     * mode of options. Secrets stored with the key are encrypted in that mode.
+     */
+    static boolean createKey(String keyName, KeyOptions options) {
         try {
-            KeyGenerator keyGenerator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, "AndroidKeyStore");
-
-            // Set the alias of the entry in Android KeyStore where the key will appear
-            // and the constrains (purposes) in the constructor of the Builder
-            KeyGenParameterSpec.Builder builder = new KeyGenParameterSpec.Builder(keyName,
-                    KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
-                    .setBlockModes(KeyProperties.BLOCK_MODE_CBC)
-                    .setUserAuthenticationRequired(true)
-                    // Require that the user has unlocked in the last 30 seconds
-                    .setUserAuthenticationValidityDurationSeconds(reauthenticationTimeoutInSecs)
-                    .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_PKCS7);
-            if (android.os.Build.VERSION.SDK_INT >= 24) {
-                builder.setInvalidatedByBiometricEnrollment(invalidateKeyByNewBiometricEnrollment);
-            }
-            keyGenerator.init(builder.build());
-            keyGenerator.generateKey();
+            keyStoreBackend.generateKey(keyName, options);
+            evictKey(keyName);
+            dataKeyCache.invalidateKey(keyName);
+            authSessions.clear(keyName);
             return true;
-        } catch (NoSuchAlgorithmException | NoSuchProviderException
-                | InvalidAlgorithmParameterException e) {
+        } catch (GeneralSecurityException | IOException e) {
             Log.e(TAG, "Failed to create a symmetric key", e);
             return false;
         }
     }
 
-    public static boolean deleteKey(String keyName) {
-        KeyStore keyStore = getKeyStore();
-        if (keyStore == null) {
-            Log.e(TAG, "createKey/cannot access keystore");
+    /**
+     * Same as {@link #createKey(String, KeyOptions)} but also empties the key's vault, whose
+     * secrets were encrypted with the key being replaced, and sets it up for envelope mode, or
+     * out of it, as requested by options.
+     */
+    static boolean createKey(Context context, String keyName, KeyOptions options) {
+        if (!createKey(keyName, options)) {
             return false;
         }
+        synchronized (vaultLock) {
+            FileStore fileStore = getFileStore(context);
+            SecretVault vault = SecretVault.load(fileStore, keyName);
+            if (vault == null) {
+                return false;
+            }
+            if (vault.reset(options.envelope) && !vault.save(fileStore)) {
+                Log.e(TAG, "createKey/Failed to save vault");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Same as {@link #deleteKey(String)} but also deletes the secrets stored under keyName, which
+     * could never be decrypted again.
+     */
+    public static boolean deleteKey(Context context, String keyName) {
+        return deleteKeys(context, Collections.singletonList(keyName)) != null;
+    }
+
+    public static boolean deleteKey(String keyName) {
         try {
-            keyStore.deleteEntry(keyName);
+            keyStoreBackend.deleteKey(keyName);
+            evictKey(keyName);
+            secretCache.invalidateKey(keyName);
+            dataKeyCache.invalidateKey(keyName);
+            authSessions.clear(keyName);
             return true;
-        } catch (KeyStoreException e) {
+        } catch (GeneralSecurityException | IOException e) {
             Log.e(TAG, "deleteKey/Failed to delete key: " + keyName, e);
             return false;
         }
     }
 
-    public static boolean storePin(Context context, String keyName, String pinValue)
-            throws UserNotAuthenticatedException {
-        byte[] encryptedData = encrypt(context, keyName, pinValue, PIN_IV_FILENAME);
-        if (encryptedData == null) {
-            Log.w(TAG, "Failed to encrypt data");
-            return false;
+    /**
+     * To be called when the user confirmed their credentials in the lock screen, which opens the
+     * authentication window of every key.
+     */
+    public static void onUserAuthenticated() {
+        authSessions.onAuthenticated();
+    }
+
+    /**
+     * To be called when the app comes back to the foreground, the user may have unlocked the
+     * device in the meantime.
+     */
+    public static void onAppResumed() {
+        authSessions.onResume();
+    }
+
+    /**
+     * @return how long the authentication window of keyName stays open, 0 if it is known to be
+     * closed, or -1 if it is not known
+     */
+    public static long getAuthSessionRemainingMillis(String keyName) {
+        Key key;
+        try {
+            key = resolveKey(keyName);
+        } catch (UnrecoverableKeyException e) {
+            return AuthSessionTracker.UNKNOWN;
+        }
+        if (key == null) {
+            return AuthSessionTracker.UNKNOWN;
+        }
+        KeyStoreBackend.KeyDescription description = describeKey(keyName, key);
+        if (description == null) {
+            return AuthSessionTracker.UNKNOWN;
+        }
+        return authSessions.remainingMillis(keyName,
+                description.authenticationValidityDurationSeconds);
+    }
+
+    /**
+     * @return the names of the keys starting with prefix, or all of them if prefix is null or
+     * empty, or null if the keystore cannot be read
+     */
+    @Nullable
+    public static List<String> listKeys(@Nullable String prefix) {
+        List<String> aliases;
+        try {
+            aliases = keyStoreBackend.aliases();
+        } catch (GeneralSecurityException | IOException e) {
+            Log.e(TAG, "listKeys/Failed to list keys", e);
+            return null;
+        }
+        if (prefix == null || prefix.isEmpty()) {
+            return aliases;
+        }
+        List<String> keyNames = new ArrayList<>();
+        for (String alias : aliases) {
+            if (alias.startsWith(prefix)) {
+                keyNames.add(alias);
+            }
+        }
+        return keyNames;
+    }
+
+    /**
+     * Checks all of keyNames against one listing of the keystore, without loading any key.
+     * @return whether each key exists, or null if the keystore cannot be read
+     */
+    @Nullable
+    public static Map<String, Boolean> keysExist(List<String> keyNames) {
+        List<String> aliases = listKeys(null);
+        if (aliases == null) {
+            return null;
+        }
+        Set<String> existing = new HashSet<>(aliases);
+        Map<String, Boolean> result = new HashMap<>(keyNames.size() * 2);
+        for (String keyName : keyNames) {
+            result.put(keyName, existing.contains(keyName));
+        }
+        return result;
+    }
+
+    /**
+     * Deletes each of keyNames which exists along with the secrets stored under it. Names which
+     * don't exist are skipped, and their secrets, if any, are deleted all the same.
+     * @return the names of the keys deleted, or null if the keystore cannot be read or some of
+     * the keys or secrets could not be deleted
+     */
+    @Nullable
+    public static List<String> deleteKeys(Context context, List<String> keyNames) {
+        List<String> aliases = listKeys(null);
+        if (aliases == null) {
+            return null;
+        }
+        Set<String> existing = new HashSet<>(aliases);
+        List<String> deleted = new ArrayList<>(keyNames.size());
+        boolean success = true;
+        FileStore fileStore = getFileStore(context);
+        fileStore.beginBatch();
+        try {
+            for (String keyName : keyNames) {
+                if (existing.contains(keyName)) {
+                    if (!deleteKey(keyName)) {
+                        success = false;
+                        continue;
+                    }
+                    deleted.add(keyName);
+                }
+                synchronized (vaultLock) {
+                    if (fileStore.exists(SecretVault.fileNameFor(keyName))
+                            && !SecretVault.delete(fileStore, keyName)) {
+                        Log.e(TAG, "deleteKeys/Failed to delete the secrets of " + keyName);
+                        success = false;
+                    }
+                }
+            }
+        } finally {
+            fileStore.endBatch();
         }
-        boolean success = writeData(context, PIN_ENCRYPTED_FILENAME, encryptedData);
-        if (!success) {
-            Log.w(TAG, "Failed to save encrypted data");
+        return success ? deleted : null;
+    }
+
+    /**
+     * Same as {@link #deleteKeys(Context, List)} with every key starting with prefix. An empty
+     * prefix is refused rather than deleting every key.
+     */
+    @Nullable
+    public static List<String> deleteKeysWithPrefix(Context context, String prefix) {
+        if (prefix == null || prefix.isEmpty()) {
+            Log.e(TAG, "deleteKeysWithPrefix/Refusing to delete every key");
+            return null;
+        }
+        List<String> keyNames = listKeys(prefix);
+        return keyNames == null ? null : deleteKeys(context, keyNames);
+    }
+
+    /**
+     * How far {@link #rotateKey} got.
+     */
+    enum RotationStatus {
+        /** The rotation failed and should be retried, or cannot be done at all. */
+        FAILED,
+        /** A batch of secrets was copied, call again to copy the next one. */
+        IN_PROGRESS,
+        /** Every secret was moved and oldKeyName is gone. */
+        DONE
+    }
+
+    /**
+     * Moves every secret stored under oldKeyName to newKeyName, a new key created with options,
+     * then deletes oldKeyName. newKeyName must not exist yet, neither as a key nor with secrets.
+     *
+     * Each call re-encrypts at most {@link #ROTATION_BATCH_SIZE} secrets and checkpoints the
+     * progress, returning {@link RotationStatus#IN_PROGRESS} until every secret has been copied,
+     * so the caller can give other work a turn between batches. Calling this again after it was
+     * interrupted, e.g. because the user has to authenticate or the app was killed, carries on
+     * where it stopped. oldKeyName and its secrets stay untouched until every secret has been
+     * copied, so reads keep working throughout. Switching over is recorded in the checkpoint
+     * before oldKeyName's secrets are deleted, so resuming after that only finishes deleting
+     * oldKeyName.
+     * @return {@link RotationStatus#FAILED} if the rotation failed and should be retried, if
+     * oldKeyName is already being rotated to another key or if newKeyName already exists
+     */
+    static RotationStatus rotateKey(Context context, String oldKeyName, String newKeyName,
+                                    KeyOptions options) throws UserNotAuthenticatedException,
+            UnrecoverableKeyException, AEADBadTagException {
+        if (oldKeyName.equals(newKeyName)) {
+            Log.e(TAG, "rotateKey/Cannot rotate " + oldKeyName + " to itself");
+            return RotationStatus.FAILED;
+        }
+        FileStore fileStore = getFileStore(context);
+        RotationCheckpoint checkpoint;
+        synchronized (vaultLock) {
+            try {
+                checkpoint = RotationCheckpoint.load(fileStore, oldKeyName);
+            } catch (IOException e) {
+                Log.e(TAG, "rotateKey/Failed to read the checkpoint", e);
+                return RotationStatus.FAILED;
+            }
+        }
+
+        if (checkpoint == null) {
+            if (!keyExists(oldKeyName)) {
+                Log.e(TAG, "rotateKey/No key named " + oldKeyName);
+                return RotationStatus.FAILED;
+            }
+            if (keyExists(newKeyName)) {
+                Log.e(TAG, "rotateKey/" + newKeyName + " already exists");
+                return RotationStatus.FAILED;
+            }
+            checkpoint = new RotationCheckpoint(newKeyName, options);
+            synchronized (vaultLock) {
+                if (fileStore.exists(SecretVault.fileNameFor(newKeyName))) {
+                    Log.e(TAG, "rotateKey/" + newKeyName + " already has secrets");
+                    return RotationStatus.FAILED;
+                }
+                if (!checkpoint.save(fileStore, oldKeyName)) {
+                    return RotationStatus.FAILED;
+                }
+            }
+            if (!createKey(context, newKeyName, options)) {
+                return RotationStatus.FAILED;
+            }
+        } else if (!checkpoint.newKeyName.equals(newKeyName)) {
+            Log.e(TAG, "rotateKey/" + oldKeyName + " is being rotated to "
+                    + checkpoint.newKeyName);
+            return RotationStatus.FAILED;
+        } else if (checkpoint.isSwitchedOver()) {
+            // Interrupted while deleting oldKeyName, every secret is already in newKeyName.
+            return finishRotation(fileStore, oldKeyName) ? RotationStatus.DONE
+                    : RotationStatus.FAILED;
+        } else if (!keyExists(newKeyName)) {
+            // Interrupted before the key was created, or it was lost since, along with whatever
+            // was copied to it.
+            if (!createKey(context, newKeyName, checkpoint.options)) {
+                return RotationStatus.FAILED;
+            }
+            checkpoint.clearCopied();
+            synchronized (vaultLock) {
+                if (!checkpoint.save(fileStore, oldKeyName)) {
+                    return RotationStatus.FAILED;
+                }
+            }
+        }
+
+        // Moves the legacy PIN into the vault if it belongs to oldKeyName, so it is copied too.
+        if (getFileStore(context).exists(PIN_ENCRYPTED_FILENAME)) {
+            retrieveSecret(context, oldKeyName, DEFAULT_SLOT);
+        }
+
+        Set<String> remainingSlots;
+        List<String> batch = new ArrayList<>(ROTATION_BATCH_SIZE);
+        Map<String, SecretVault.Record> sources = new HashMap<>(ROTATION_BATCH_SIZE * 2);
+        synchronized (vaultLock) {
+            if (!fileStore.exists(SecretVault.fileNameFor(oldKeyName))
+                    && !checkpoint.copiedSlots().isEmpty()) {
+                // Only switching over deletes the vault, so something else did.
+                Log.e(TAG, "rotateKey/The secrets of " + oldKeyName + " are gone");
+                return RotationStatus.FAILED;
+            }
+            SecretVault oldVault = SecretVault.load(fileStore, oldKeyName);
+            if (oldVault == null) {
+                return RotationStatus.FAILED;
+            }
+            remainingSlots = oldVault.slots();
+            for (String slot : remainingSlots) {
+                SecretVault.Record record = oldVault.get(slot);
+                if (!checkpoint.isCopied(slot, record)) {
+                    batch.add(slot);
+                    sources.put(slot, record);
+                    if (batch.size() == ROTATION_BATCH_SIZE) {
+                        break;
+                    }
+                }
+            }
+        }
+
+        if (!batch.isEmpty()) {
+            Map<String, String> secrets = retrieveSecrets(context, oldKeyName, batch);
+            if (secrets == null) {
+                return RotationStatus.FAILED;
+            }
+            for (String slot : batch) {
+                if (secrets.get(slot) == null) {
+                    Log.e(TAG, "rotateKey/Failed to decrypt " + slot);
+                    return RotationStatus.FAILED;
+                }
+            }
+            if (!storeSecrets(context, newKeyName, secrets)) {
+                return RotationStatus.FAILED;
+            }
+            for (String slot : batch) {
+                checkpoint.markCopied(slot, sources.get(slot));
+            }
+            synchronized (vaultLock) {
+                if (!checkpoint.save(fileStore, oldKeyName)) {
+                    return RotationStatus.FAILED;
+                }
+            }
+            return RotationStatus.IN_PROGRESS;
+        }
+
+        // Every secret has been copied, switch over.
+        synchronized (vaultLock) {
+            Set<String> deletedSlots = checkpoint.copiedSlots();
+            deletedSlots.removeAll(remainingSlots);
+            if (!deletedSlots.isEmpty()) {
+                // Deleted from oldKeyName after they were copied.
+                SecretVault newVault = SecretVault.load(fileStore, newKeyName);
+                if (newVault == null) {
+                    return RotationStatus.FAILED;
+                }
+                for (String slot : deletedSlots) {
+                    newVault.remove(slot);
+                    secretCache.invalidate(newKeyName, slot);
+                }
+                if (!newVault.save(fileStore)) {
+                    Log.e(TAG, "rotateKey/Failed to save vault");
+                    return RotationStatus.FAILED;
+                }
+            }
+            checkpoint.setSwitchedOver();
+            if (!checkpoint.save(fileStore, oldKeyName)) {
+                return RotationStatus.FAILED;
+            }
+        }
+        return finishRotation(fileStore, oldKeyName) ? RotationStatus.DONE
+                : RotationStatus.FAILED;
+    }
+
+    /**
+     * Deletes oldKeyName once the checkpoint of its rotation says it was switched over, then the
+     * checkpoint itself.
+     */
+    private static boolean finishRotation(FileStore fileStore, String oldKeyName) {
+        synchronized (vaultLock) {
+            // The vault goes before the key, a key without a vault is just an empty key while a
+            // vault without its key could never be read again.
+            if (fileStore.exists(SecretVault.fileNameFor(oldKeyName))
+                    && !SecretVault.delete(fileStore, oldKeyName)) {
+                Log.e(TAG, "rotateKey/Failed to delete the secrets of " + oldKeyName);
+                return false;
+            }
+        }
+        if (!deleteKey(oldKeyName)) {
             return false;
         }
+        synchronized (vaultLock) {
+            if (!RotationCheckpoint.delete(fileStore, oldKeyName)) {
+                Log.w(TAG, "rotateKey/Failed to delete the checkpoint");
+            }
+        }
         return true;
     }
 
+    /**
+     * Keeps decrypted secrets in memory for up to ttlInSecs, and never past the authentication
+     * window of their key, so repeated reads don't need the keystore. 0 disables the cache.
+     */
+    public static void setSecretCacheTtl(int ttlInSecs) {
+        secretCacheTtlMillis = Math.max(0, ttlInSecs) * 1000L;
+        if (secretCacheTtlMillis == 0) {
+            secretCache.clear();
+        }
+    }
+
+    public static void clearSecretCache() {
+        secretCache.clear();
+    }
+
+    /**
+     * Forgets the unwrapped envelope mode data keys, the next operation on each vault goes to the
+     * keystore again.
+     */
+    public static void clearDataKeyCache() {
+        dataKeyCache.clear();
+    }
+
+    public static boolean storePin(Context context, String keyName, String pinValue)
+            throws UserNotAuthenticatedException {
+        return storeSecret(context, keyName, DEFAULT_SLOT, pinValue);
+    }
+
     public static String retrievePin(Context context, String keyName) throws
-            UserNotAuthenticatedException, UnrecoverableKeyException {
-        byte[] encryptedData = readData(context, PIN_ENCRYPTED_FILENAME);
+            UserNotAuthenticatedException, UnrecoverableKeyException, AEADBadTagException {
+        return retrieveSecret(context, keyName, DEFAULT_SLOT);
+    }
 
-        KeyStore keyStore = getKeyStore();
-        if (keyStore == null) {
-            return null;
+    /**
+     * Encrypts value with the key keyName and stores it in slot, replacing whatever the slot
+     * held before. Other slots stored under the same key are left untouched.
+     */
+    public static boolean storeSecret(Context context, String keyName, String slot, String value)
+            throws UserNotAuthenticatedException {
+        return storeSecrets(context, keyName, Collections.singletonMap(slot, value));
+    }
+
+    /**
+     * Encrypts every value of slotsToValues with the key keyName and stores them in a single
+     * write. Either all of them are stored or none is.
+     */
+    public static boolean storeSecrets(Context context, String keyName,
+                                       Map<String, String> slotsToValues)
+            throws UserNotAuthenticatedException {
+        Map<String, byte[]> plainTexts = new HashMap<>(slotsToValues.size() * 2);
+        for (Map.Entry<String, String> entry : slotsToValues.entrySet()) {
+            plainTexts.put(entry.getKey(), entry.getValue().getBytes(Charset.defaultCharset()));
         }
+        Map<String, SecretVault.Record> records;
+        synchronized (vaultLock) {
+            FileStore fileStore = getFileStore(context);
+            SecretVault vault = SecretVault.load(fileStore, keyName);
+            if (vault == null) {
+                return false;
+            }
+            try {
+                records = vault.isEnvelope()
+                        ? encryptWithDataKey(keyName, vault, plainTexts)
+                        : encrypt(keyName, plainTexts);
+            } finally {
+                for (byte[] plainText : plainTexts.values()) {
+                    Arrays.fill(plainText, (byte) 0);
+                }
+            }
+            if (records == null) {
+                Log.w(TAG, "Failed to encrypt data");
+                return false;
+            }
+            long now = Clock.get().currentTimeMillis();
+            for (Map.Entry<String, SecretVault.Record> entry : records.entrySet()) {
+                SecretVault.Record previous = vault.get(entry.getKey());
+                long createdAt = previous == null ? now : previous.createdAt;
+                vault.put(entry.getKey(), entry.getValue().withTimestamps(createdAt, now));
+            }
+            fileStore.beginBatch();
+            try {
+                if (!vault.save(fileStore)) {
+                    Log.w(TAG, "Failed to save encrypted data");
+                    return false;
+                }
+                if (records.containsKey(DEFAULT_SLOT)) {
+                    deleteLegacyPin(fileStore);
+                }
+            } finally {
+                fileStore.endBatch();
+            }
+        }
+        for (String slot : records.keySet()) {
+            secretCache.invalidate(keyName, slot);
+        }
+        return true;
+    }
 
-        Key secretKey = getKey(keyStore, keyName);
+    /**
+     * @return the decrypted secret, or null if nothing is stored in slot or it cannot be decrypted
+     */
+    @Nullable
+    public static String retrieveSecret(Context context, String keyName, String slot) throws
+            UserNotAuthenticatedException, UnrecoverableKeyException, AEADBadTagException {
+        Map<String, String> secrets = retrieveSecrets(context, keyName,
+                Collections.singletonList(slot));
+        return secrets == null ? null : secrets.get(slot);
+    }
+
+    /**
+     * Decrypts the secrets stored in slots, loading the vault and resolving the key only once.
+     * @return the decrypted secret for each slot, with a null value for the slots which are empty
+     * or cannot be decrypted, or null if the vault or the key cannot be accessed
+     */
+    @Nullable
+    public static Map<String, String> retrieveSecrets(Context context, String keyName,
+                                                      List<String> slots) throws
+            UserNotAuthenticatedException, UnrecoverableKeyException, AEADBadTagException {
+        Map<String, String> secrets = new HashMap<>(slots.size() * 2);
+        List<String> uncachedSlots = new ArrayList<>(slots.size());
+        for (String slot : slots) {
+            String secret = secretCacheTtlMillis > 0 ? secretCache.get(keyName, slot) : null;
+            if (secret != null) {
+                secrets.put(slot, secret);
+            } else {
+                uncachedSlots.add(slot);
+            }
+        }
+        if (uncachedSlots.isEmpty()) {
+            return secrets;
+        }
+
+        Map<String, SecretVault.Record> records = new HashMap<>(uncachedSlots.size() * 2);
+        SecretVault.Record legacyRecord = null;
+        SecretVault.Record wrappedDataKey;
+        synchronized (vaultLock) {
+            SecretVault vault = SecretVault.load(getFileStore(context), keyName);
+            if (vault == null) {
+                return null;
+            }
+            wrappedDataKey = vault.getWrappedDataKey();
+            for (String slot : uncachedSlots) {
+                SecretVault.Record record = vault.get(slot);
+                if (record == null && DEFAULT_SLOT.equals(slot)) {
+                    record = legacyRecord = readLegacyPin(context);
+                }
+                records.put(slot, record);
+            }
+        }
+
+        Key secretKey = null;
+        DataKey dataKey = null;
+        Cipher dataKeyCipher = null;
+        try {
+            for (Map.Entry<String, SecretVault.Record> entry : records.entrySet()) {
+                SecretVault.Record record = entry.getValue();
+                if (record == null) {
+                    Log.w(TAG, "retrieveSecrets/Nothing stored in slot " + entry.getKey());
+                    secrets.put(entry.getKey(), null);
+                    continue;
+                }
+                if (secretKey == null) {
+                    secretKey = resolveKey(keyName);
+                    if (secretKey == null) {
+                        Log.e(TAG, "retrieveSecrets/Failed to load key");
+                        return null;
+                    }
+                }
+                byte[] secret;
+                if (record.usesDataKey) {
+                    if (dataKey == null) {
+                        if (wrappedDataKey == null) {
+                            Log.e(TAG, "retrieveSecrets/Vault has no data key");
+                            return null;
+                        }
+                        byte[] unwrapped = unwrapDataKey(keyName, secretKey, wrappedDataKey);
+                        if (unwrapped == null) {
+                            return null;
+                        }
+                        dataKey = new DataKey(unwrapped);
+                        dataKeyCipher = newDataKeyCipher();
+                        if (dataKeyCipher == null) {
+                            return null;
+                        }
+                    }
+                    secret = decrypt(keyName, dataKey, dataKeyCipher, record);
+                } else {
+                    Cipher cipher = newCipher(record.mode, secretKey);
+                    if (cipher == null) {
+                        return null;
+                    }
+                    checkAuthSession(keyName, secretKey);
+                    secret = decrypt(keyName, secretKey, cipher, record);
+                }
+                if (secret == null) {
+                    secrets.put(entry.getKey(), null);
+                    continue;
+                }
+                secrets.put(entry.getKey(), new String(secret, Charset.defaultCharset()));
+                long ttlMillis = getSecretCacheTtlMillis(keyName, secretKey);
+                if (ttlMillis > 0) {
+                    secretCache.put(keyName, entry.getKey(), secret, ttlMillis);
+                } else {
+                    Arrays.fill(secret, (byte) 0);
+                }
+            }
+        } finally {
+            if (dataKey != null) {
+                dataKey.destroy();
+            }
+        }
+
+        if (legacyRecord != null && secrets.get(DEFAULT_SLOT) != null) {
+            // The legacy PIN decrypts with this key, so it belongs in this key's vault.
+            migrateLegacyPin(context, keyName, legacyRecord);
+        }
+        return secrets;
+    }
+
+    /**
+     * Describes the secrets stored in slots from their records alone, so it neither needs the key
+     * nor the user to authenticate.
+     * @return the description of each slot, with a null value for the slots which are empty, or
+     * null if the vault cannot be read
+     */
+    @Nullable
+    public static Map<String, SecretInfo> getSecretInfos(Context context, String keyName,
+                                                         List<String> slots) {
+        Map<String, SecretInfo> infos = new HashMap<>(slots.size() * 2);
+        synchronized (vaultLock) {
+            SecretVault vault = SecretVault.load(getFileStore(context), keyName);
+            if (vault == null) {
+                return null;
+            }
+            for (String slot : slots) {
+                SecretVault.Record record = vault.get(slot);
+                if (record != null) {
+                    infos.put(slot, new SecretInfo(record));
+                } else if (DEFAULT_SLOT.equals(slot)) {
+                    infos.put(slot, describeLegacyPin(context));
+                } else {
+                    infos.put(slot, null);
+                }
+            }
+        }
+        return infos;
+    }
+
+    /**
+     * Encrypts the file source into destination with the key keyName, streaming it in chunks.
+     * Progress is reported to listener, if not null. Fails for files larger than
+     * {@link FileCipher#MAX_GCM_FILE_SIZE} if keyName is a GCM key.
+     */
+    public static boolean encryptFile(String keyName, File source, File destination,
+                                      @Nullable FileCipher.ProgressListener listener)
+            throws UserNotAuthenticatedException {
+        Key secretKey;
+        try {
+            secretKey = resolveKey(keyName);
+        } catch (UnrecoverableKeyException e) {
+            Log.e(TAG, "encryptFile/key is unrecoverable");
+            return false;
+        }
         if (secretKey == null) {
-            Log.e(TAG, "retrievePin/Failed to load key");
-            return null;
+            Log.e(TAG, "encryptFile/fail to read key");
+            return false;
+        }
+        CipherMode mode = getKeyMode(keyName, secretKey);
+        Cipher cipher = mode == null ? null : newCipher(mode, secretKey);
+        if (cipher == null) {
+            return false;
+        }
+        if (mode == CipherMode.GCM && source.length() > FileCipher.MAX_GCM_FILE_SIZE) {
+            Log.e(TAG, "encryptFile/" + source + " is too large for a GCM key");
+            return false;
+        }
+
+        try {
+            checkAuthSession(keyName, secretKey);
+            initCipher(cipher, Cipher.ENCRYPT_MODE, secretKey);
+            FileCipher.encrypt(cipher, mode, source, destination, listener);
+            return true;
+        } catch (UserNotAuthenticatedException e) {
+            Log.w(TAG, "encryptFile/User not authenticated");
+            authSessions.onWindowClosed(keyName);
+            throw e;
+        } catch (InvalidKeyException e) {
+            evictKey(keyName);
+            Log.w(TAG, "encryptFile/Failed to encrypt " + source, e);
+            return false;
+        } catch (GeneralSecurityException | IOException e) {
+            Log.w(TAG, "encryptFile/Failed to encrypt " + source, e);
+            return false;
+        }
+    }
+
+    /**
+     * Decrypts the file source, written by {@link #encryptFile}, into destination. Fails for
+     * files encrypted with GCM which are larger than {@link FileCipher#MAX_GCM_FILE_SIZE}.
+     * @throws AEADBadTagException if source was encrypted with GCM and has been tampered with
+     */
+    public static boolean decryptFile(String keyName, File source, File destination,
+                                      @Nullable FileCipher.ProgressListener listener)
+            throws UserNotAuthenticatedException, UnrecoverableKeyException, AEADBadTagException {
+        Key secretKey = resolveKey(keyName);
+        if (secretKey == null) {
+            Log.e(TAG, "decryptFile/Failed to load key");
+            return false;
         }
 
         try {
-            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS7Padding");
-            IvParameterSpec ivParams = new IvParameterSpec(readData(context, PIN_IV_FILENAME));
-            cipher.init(Cipher.DECRYPT_MODE, secretKey, ivParams);
-            return new String(cipher.doFinal(encryptedData));
+            FileCipher.Header header = FileCipher.readHeader(source);
+            if (header.mode == CipherMode.GCM
+                    && source.length() - header.size - CipherMode.GCM_TAG_LENGTH
+                    > FileCipher.MAX_GCM_FILE_SIZE) {
+                Log.e(TAG, "decryptFile/" + source + " is too large for a GCM key");
+                return false;
+            }
+            Cipher cipher = newCipher(header.mode, secretKey);
+            if (cipher == null) {
+                return false;
+            }
+            checkAuthSession(keyName, secretKey);
+            initCipher(cipher, Cipher.DECRYPT_MODE, secretKey,
+                    header.mode.parameterSpec(header.iv));
+            FileCipher.decrypt(cipher, header, source, destination, listener);
+            return true;
         } catch (UserNotAuthenticatedException e) {
-            Log.e(TAG, "retrievePin/User is not authenticated");
+            Log.w(TAG, "decryptFile/User not authenticated");
+            authSessions.onWindowClosed(keyName);
             throw e;
-        } catch (NoSuchAlgorithmException | InvalidKeyException | InvalidAlgorithmParameterException |
-                NoSuchPaddingException | BadPaddingException | IllegalBlockSizeException e) {
-            Log.e(TAG, "retrievePin/Error trying to decrypt the pin");
+        } catch (AEADBadTagException e) {
+            Log.e(TAG, "decryptFile/File failed its integrity check");
+            throw e;
+        } catch (InvalidKeyException e) {
+            Log.w(TAG, "decryptFile/Failed to decrypt " + source, e);
+            recheckKey(keyName);
+            return false;
+        } catch (GeneralSecurityException | IOException e) {
+            Log.w(TAG, "decryptFile/Failed to decrypt " + source, e);
+            return false;
+        }
+    }
+
+    /**
+     * Removes slot from the secrets stored under keyName. This does not need the user to
+     * authenticate.
+     */
+    public static boolean deleteSecret(Context context, String keyName, String slot) {
+        synchronized (vaultLock) {
+            FileStore fileStore = getFileStore(context);
+            SecretVault vault = SecretVault.load(fileStore, keyName);
+            if (vault == null) {
+                return false;
+            }
+            fileStore.beginBatch();
+            try {
+                if (DEFAULT_SLOT.equals(slot)) {
+                    deleteLegacyPin(fileStore);
+                }
+                secretCache.invalidate(keyName, slot);
+                if (vault.remove(slot) && !vault.save(fileStore)) {
+                    Log.w(TAG, "deleteSecret/Failed to save vault");
+                    return false;
+                }
+                return true;
+            } finally {
+                fileStore.endBatch();
+            }
+        }
+    }
+
+    @Nullable
+    private static KeyStoreBackend.KeyDescription describeKey(String keyName, Key key) {
+        KeyStoreBackend.KeyDescription description = cachedKeyDescriptions.get(keyName);
+        if (description != null) {
+            return description;
+        }
+        try {
+            description = keyStoreBackend.describeKey(keyName, key);
+        } catch (GeneralSecurityException e) {
+            Log.e(TAG, "describeKey/Failed to read key info", e);
             return null;
         }
+        cachedKeyDescriptions.put(keyName, description);
+        return description;
     }
 
+    /**
+     * The mode a key was created with, secrets are encrypted in the mode of their key.
+     */
     @Nullable
-    private static KeyStore getKeyStore() {
-        KeyStore keyStore;
+    private static CipherMode getKeyMode(String keyName, Key key) {
+        KeyStoreBackend.KeyDescription description = describeKey(keyName, key);
+        return description == null ? null : description.cipherMode;
+    }
+
+    /**
+     * A secret decrypted just now can be cached until the key's authentication window closes at
+     * the latest. Keys which need authentication for every use must not be bypassed by the cache.
+     */
+    private static long getSecretCacheTtlMillis(String keyName, Key key) {
+        long ttlMillis = secretCacheTtlMillis;
+        if (ttlMillis == 0) {
+            return 0;
+        }
+        KeyStoreBackend.KeyDescription description = describeKey(keyName, key);
+        if (description == null) {
+            return 0;
+        }
+        return Math.min(ttlMillis, getAuthWindowMillis(keyName, description));
+    }
+
+    /**
+     * @return a cipher for mode and key, reused by later calls on the same thread, so it must be
+     * initialized before each use and not shared with other threads
+     */
+    @Nullable
+    private static Cipher newCipher(CipherMode mode, Key key) {
         try {
-            keyStore = KeyStore.getInstance("AndroidKeyStore");
-        } catch (KeyStoreException e) {
-            Log.e(TAG, "Failed to access keystore", e);
+            return CryptoPool.cipher(mode.transformation, key);
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            Log.e(TAG, "Failed to create Cipher", e);
             return null;
         }
+    }
 
+    /**
+     * Ciphers for the data key are not pooled, as the key schedule a pooled cipher holds on to
+     * would outlive the data key being cleared.
+     */
+    @Nullable
+    private static Cipher newDataKeyCipher() {
         try {
-            keyStore.load(null);
-        } catch (CertificateException | IOException | NoSuchAlgorithmException e) {
-            Log.e(TAG, "Failed to load keystore", e);
+            return Cipher.getInstance(CipherMode.GCM.transformation);
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            Log.e(TAG, "Failed to create Cipher", e);
             return null;
         }
-        return keyStore;
     }
 
-    public static boolean keyExists(String keyName) {
-        KeyStore keyStore = getKeyStore();
-        if (keyStore == null) {
-            Log.e(TAG, "Cannot access keystore, cannot create key");
+    /**
+     * @throws AEADBadTagException if the record is authenticated and has been tampered with
+     */
+    @Nullable
+    private static byte[] decrypt(String keyName, Key secretKey, Cipher cipher,
+                                  SecretVault.Record record)
+            throws UserNotAuthenticatedException, UnrecoverableKeyException, AEADBadTagException {
+        try {
+            initCipher(cipher, Cipher.DECRYPT_MODE, secretKey,
+                    record.mode.parameterSpec(record.iv));
+            return doFinal(cipher, record.cipherText);
+        } catch (UserNotAuthenticatedException e) {
+            Log.e(TAG, "decrypt/User is not authenticated");
+            authSessions.onWindowClosed(keyName);
+            throw e;
+        } catch (AEADBadTagException e) {
+            Log.e(TAG, "decrypt/Secret failed its integrity check");
+            throw e;
+        } catch (InvalidKeyException e) {
+            Log.e(TAG, "decrypt/Error trying to decrypt the secret", e);
+            recheckKey(keyName);
+            return null;
+        } catch (InvalidAlgorithmParameterException | BadPaddingException
+                | IllegalBlockSizeException e) {
+            Log.e(TAG, "decrypt/Error trying to decrypt the secret");
+            return null;
+        }
+    }
+
+    /**
+     * Describes the legacy PIN, see {@link #readLegacyPin}, from the metadata of its file alone.
+     */
+    @Nullable
+    private static SecretInfo describeLegacyPin(Context context) {
+        File file = getFileStore(context).file(PIN_ENCRYPTED_FILENAME);
+        if (!file.exists()) {
+            return null;
+        }
+        return new SecretInfo(CipherMode.CBC, false, SecretVault.UNKNOWN_TIME,
+                file.lastModified(), (int) file.length());
+    }
+
+    /**
+     * Versions before the vault stored a single PIN as two files that are not tied to a key.
+     */
+    @Nullable
+    private static SecretVault.Record readLegacyPin(Context context) {
+        FileStore fileStore = getFileStore(context);
+        if (!fileStore.exists(PIN_ENCRYPTED_FILENAME)) {
+            return null;
+        }
+        byte[] encryptedData = readData(fileStore, PIN_ENCRYPTED_FILENAME);
+        byte[] iv = readData(fileStore, PIN_IV_FILENAME);
+        if (encryptedData == null || iv == null) {
+            return null;
+        }
+        return new SecretVault.Record(CipherMode.CBC, iv, encryptedData, false,
+                SecretVault.UNKNOWN_TIME, fileStore.file(PIN_ENCRYPTED_FILENAME).lastModified());
+    }
+
+    private static void migrateLegacyPin(Context context, String keyName,
+                                         SecretVault.Record legacyRecord) {
+        synchronized (vaultLock) {
+            FileStore fileStore = getFileStore(context);
+            SecretVault vault = SecretVault.load(fileStore, keyName);
+            if (vault == null) {
+                return;
+            }
+            fileStore.beginBatch();
+            try {
+                if (vault.get(DEFAULT_SLOT) == null) {
+                    vault.put(DEFAULT_SLOT, legacyRecord);
+                    if (!vault.save(fileStore)) {
+                        Log.w(TAG, "migrateLegacyPin/Failed to save vault");
+                        return;
+                    }
+                }
+                deleteLegacyPin(fileStore);
+            } finally {
+                fileStore.endBatch();
+            }
+            Log.i(TAG, "migrateLegacyPin/Moved the legacy PIN into the vault");
+        }
+    }
+
+    private static boolean deleteLegacyPin(FileStore fileStore) {
+        boolean deleted = fileStore.delete(PIN_ENCRYPTED_FILENAME);
+        return fileStore.delete(PIN_IV_FILENAME) || deleted;
+    }
+
+    /**
+     * Loads the keystore, resolves the providers and ciphers and, if keyName is given, looks up
+     * the key and its properties, so the first real operation doesn't pay for them. Blocks, so it
+     * must run on a background thread.
+     */
+    public static boolean prewarm(@Nullable String keyName) {
+        long start = Metrics.begin(Metrics.Phase.PREWARM);
+        try {
+            keyStoreBackend.prewarm();
+            for (CipherMode mode : CipherMode.values()) {
+                Cipher.getInstance(mode.transformation);
+            }
+            if (keyName != null) {
+                Key key = resolveKey(keyName);
+                CipherMode mode = key == null ? null : getKeyMode(keyName, key);
+                if (mode != null) {
+                    // Ciphers are pooled per thread, this one is for the background thread
+                    // running the module's operations.
+                    newCipher(mode, key);
+                }
+            }
+            return true;
+        } catch (GeneralSecurityException | IOException e) {
+            Log.e(TAG, "prewarm/Failed to warm up", e);
             return false;
+        } finally {
+            Metrics.end(Metrics.Phase.PREWARM, start);
         }
+    }
+
+    /**
+     * Finds out whether keyName is still usable without the user having to authenticate, as the
+     * keystore refuses to start an operation with a permanently invalidated key before checking
+     * the authentication. The key is looked up fresh rather than through the cache, which would
+     * keep handing out the handle of a key which was deleted or became unrecoverable. Blocks, so
+     * it must run on a background thread.
+     */
+    static KeyState getKeyState(String keyName) {
+        evictKey(keyName);
+        Key key;
         try {
-            return getKey(keyStore, keyName) != null;
+            key = resolveKey(keyName);
         } catch (UnrecoverableKeyException e) {
-            // An unrecoveable key is same as a non-existent key.
+            return KeyState.INVALIDATED;
+        }
+        if (key == null) {
+            return KeyState.MISSING;
+        }
+        CipherMode mode = getKeyMode(keyName, key);
+        Cipher cipher = mode == null ? null : newCipher(mode, key);
+        if (cipher == null) {
+            // Cannot tell, assume the key is fine until an operation shows otherwise.
+            return KeyState.VALID;
+        }
+        try {
+            initCipher(cipher, Cipher.ENCRYPT_MODE, key);
+            return KeyState.VALID;
+        } catch (KeyPermanentlyInvalidatedException e) {
+            Log.w(TAG, "getKeyState/" + keyName + " has been invalidated");
+            evictKey(keyName);
+            return KeyState.INVALIDATED;
+        } catch (UserNotAuthenticatedException e) {
+            return KeyState.VALID;
+        } catch (InvalidKeyException e) {
+            // Refused for another reason than the user not having authenticated, so the key will
+            // not work whatever the user does.
+            Log.e(TAG, "getKeyState/" + keyName + " cannot be used", e);
+            evictKey(keyName);
+            try {
+                return keyStoreBackend.containsAlias(keyName) ? KeyState.INVALIDATED
+                        : KeyState.MISSING;
+            } catch (GeneralSecurityException | IOException ex) {
+                Log.e(TAG, "getKeyState/Failed to read the keystore", ex);
+                return KeyState.INVALIDATED;
+            }
+        }
+    }
+
+    /**
+     * Asks the keystore rather than the cached handle, which outlives the key being deleted. A
+     * key which became unrecoverable still exists until it is deleted, operations with it fail
+     * with {@link UnrecoverableKeyException}, see {@link #recheckKey}.
+     */
+    public static boolean keyExists(String keyName) {
+        try {
+            return keyStoreBackend.containsAlias(keyName);
+        } catch (GeneralSecurityException | IOException e) {
+            Log.e(TAG, "keyExists/Failed to read the keystore", e);
             return false;
         }
     }
 
     @Nullable
-    private static Key getKey(KeyStore keyStore, String keyName) throws UnrecoverableKeyException {
+    private static Key resolveKey(String keyName) throws UnrecoverableKeyException {
+        Key key = cachedKeys.get(keyName);
+        if (key != null) {
+            return key;
+        }
+        long start = Metrics.begin(Metrics.Phase.KEY_LOOKUP);
         try {
-            return keyStore.getKey(keyName, null);
-        } catch (KeyStoreException | NoSuchAlgorithmException e) {
-            Log.e(TAG, "Failed to load key", e);
-            return null;
+            key = keyStoreBackend.getKey(keyName);
         } catch (UnrecoverableKeyException e) {
             Log.e(TAG, "Key is unrecoverable", e);
+            evictKey(keyName);
             throw e;
+        } catch (GeneralSecurityException | IOException e) {
+            Log.e(TAG, "Failed to load key", e);
+            return null;
+        } finally {
+            Metrics.end(Metrics.Phase.KEY_LOOKUP, start);
         }
+        if (key != null) {
+            cachedKeys.put(keyName, key);
+        }
+        return key;
     }
 
-    private static byte[] encrypt(Context context, String keyName, String plainTextMessage, String ivFilename)
-            throws UserNotAuthenticatedException {
-        KeyStore keyStore = getKeyStore();
-        if (keyStore == null) {
-            return null;
+    private static void initCipher(Cipher cipher, int opmode, Key key)
+            throws InvalidKeyException {
+        keyStoreBackend.checkKeyUsable(key);
+        long start = Metrics.begin(Metrics.Phase.CIPHER_INIT);
+        try {
+            cipher.init(opmode, key);
+        } finally {
+            Metrics.end(Metrics.Phase.CIPHER_INIT, start);
+        }
+    }
+
+    private static void initCipher(Cipher cipher, int opmode, Key key,
+                                   AlgorithmParameterSpec params)
+            throws InvalidKeyException, InvalidAlgorithmParameterException {
+        keyStoreBackend.checkKeyUsable(key);
+        long start = Metrics.begin(Metrics.Phase.CIPHER_INIT);
+        try {
+            cipher.init(opmode, key, params);
+        } finally {
+            Metrics.end(Metrics.Phase.CIPHER_INIT, start);
         }
+    }
 
+    private static byte[] doFinal(Cipher cipher, byte[] input)
+            throws IllegalBlockSizeException, BadPaddingException {
+        long start = Metrics.begin(Metrics.Phase.CIPHER_DO_FINAL);
+        try {
+            return cipher.doFinal(input);
+        } finally {
+            Metrics.end(Metrics.Phase.CIPHER_DO_FINAL, start);
+        }
+    }
+
+    private static void evictKey(String keyName) {
+        cachedKeys.remove(keyName);
+        cachedKeyDescriptions.remove(keyName);
+    }
+
+    /**
+     * Called when a cipher refused the handle of keyName. The handle may be cached from before
+     * the key became unrecoverable, e.g. because the screen lock was removed, in which case
+     * looking the key up again throws, so the caller reports an unrecoverable key rather than a
+     * failed operation.
+     */
+    private static void recheckKey(String keyName) throws UnrecoverableKeyException {
+        evictKey(keyName);
+        resolveKey(keyName);
+    }
+
+    @Nullable
+    private static Map<String, SecretVault.Record> encrypt(String keyName,
+                                                           Map<String, byte[]> plainTextMessages)
+            throws UserNotAuthenticatedException {
         Key secretKey;
         try {
-            secretKey = getKey(keyStore, keyName);
+            secretKey = resolveKey(keyName);
         } catch (UnrecoverableKeyException e) {
             Log.e(TAG, "key is unrecoverable, this is unusual at the time of encrypt");
             return null;
@@ -228,109 +1234,193 @@ public class AndroidKeyStoreHelper {
             return null;
         }
 
-        Cipher cipher;
-        try {
-            cipher = Cipher.getInstance("AES/CBC/PKCS7Padding");
-        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
-            Log.e(TAG, "Failed to create Cipher", e);
+        CipherMode mode = getKeyMode(keyName, secretKey);
+        if (mode == null) {
+            return null;
+        }
+        Cipher cipher = newCipher(mode, secretKey);
+        if (cipher == null) {
             return null;
         }
 
-        byte[] encryptedData;
+        Map<String, SecretVault.Record> records = new HashMap<>(plainTextMessages.size() * 2);
         // Try encrypting something, it will only work if the user authenticated within
         // the reauthenticationTimeoutInSecs timeout specified during key creation.
         try {
-            cipher.init(Cipher.ENCRYPT_MODE, secretKey);
-            encryptedData = cipher.doFinal(plainTextMessage.getBytes(Charset.defaultCharset()));
+            checkAuthSession(keyName, secretKey);
+            for (Map.Entry<String, byte[]> entry : plainTextMessages.entrySet()) {
+                initCipher(cipher, Cipher.ENCRYPT_MODE, secretKey);
+                byte[] encryptedData = doFinal(cipher, entry.getValue());
+                records.put(entry.getKey(), new SecretVault.Record(mode, cipher.getIV(),
+                        encryptedData));
+            }
         } catch (UserNotAuthenticatedException e) {
             Log.w(TAG, "encrypt/User not authenticated");
+            authSessions.onWindowClosed(keyName);
             throw e;
-        } catch (BadPaddingException | IllegalBlockSizeException | InvalidKeyException e) {
+        } catch (InvalidKeyException e) {
+            evictKey(keyName);
             Log.w(TAG, "encrypt/Failed to encrypt data", e);
             return null;
-        }
-
-        if (!writeData(context, ivFilename, cipher.getIV())) {
+        } catch (BadPaddingException | IllegalBlockSizeException e) {
+            Log.w(TAG, "encrypt/Failed to encrypt data", e);
             return null;
         }
-        return encryptedData;
+        return records;
+    }
 
+    /**
+     * Fails fast, without a keystore operation bound to fail, if the authentication window of
+     * keyName is known to be closed.
+     */
+    private static void checkAuthSession(String keyName, Key key)
+            throws UserNotAuthenticatedException {
+        KeyStoreBackend.KeyDescription description = describeKey(keyName, key);
+        if (description != null && authSessions.remainingMillis(keyName,
+                description.authenticationValidityDurationSeconds) == 0) {
+            throw new UserNotAuthenticatedException("Authentication window closed");
+        }
     }
 
-    private static boolean writeData(Context context, String fileName, byte[] data) {
-        FileOutputStream fos;
-        try {
-            fos = context.openFileOutput(fileName, Context.MODE_PRIVATE);
-        } catch (FileNotFoundException e) {
-            Log.e(TAG, "Failed to create file " + fileName, e);
-            return false;
+    /**
+     * Encrypts in process with the data key of vault, creating one and wrapping it with the
+     * keystore key if vault doesn't have one yet. Wrapping or unwrapping the data key is the only
+     * keystore operation, however many secrets are encrypted.
+     */
+    @Nullable
+    private static Map<String, SecretVault.Record> encryptWithDataKey(
+            String keyName, SecretVault vault, Map<String, byte[]> plainTextMessages)
+            throws UserNotAuthenticatedException {
+        byte[] dataKey;
+        SecretVault.Record wrappedDataKey = vault.getWrappedDataKey();
+        if (wrappedDataKey == null) {
+            dataKey = new byte[DATA_KEY_SIZE_BYTES];
+            secureRandom.nextBytes(dataKey);
+            Map<String, SecretVault.Record> wrapped =
+                    encrypt(keyName, Collections.singletonMap(DATA_KEY_SLOT, dataKey));
+            if (wrapped == null) {
+                Arrays.fill(dataKey, (byte) 0);
+                return null;
+            }
+            // Not cached until the vault holding it has been saved, the next operation will
+            // unwrap it.
+            vault.setWrappedDataKey(wrapped.get(DATA_KEY_SLOT));
+        } else {
+            try {
+                Key secretKey = resolveKey(keyName);
+                if (secretKey == null) {
+                    Log.e(TAG, "encryptWithDataKey/fail to read key");
+                    return null;
+                }
+                dataKey = unwrapDataKey(keyName, secretKey, wrappedDataKey);
+            } catch (UnrecoverableKeyException | AEADBadTagException e) {
+                Log.e(TAG, "encryptWithDataKey/Failed to unwrap the data key", e);
+                return null;
+            }
+            if (dataKey == null) {
+                return null;
+            }
         }
 
+        DataKey dataKeySpec = new DataKey(dataKey);
         try {
-            fos.write(data);
-            fos.close();
-        } catch (IOException e) {
-            Log.e(TAG, "Failed to write " + fileName, e);
-            return false;
+            Cipher cipher = newDataKeyCipher();
+            if (cipher == null) {
+                return null;
+            }
+            Map<String, SecretVault.Record> records =
+                    new HashMap<>(plainTextMessages.size() * 2);
+            for (Map.Entry<String, byte[]> entry : plainTextMessages.entrySet()) {
+                byte[] iv = new byte[DATA_KEY_IV_SIZE_BYTES];
+                secureRandom.nextBytes(iv);
+                initCipher(cipher, Cipher.ENCRYPT_MODE, dataKeySpec,
+                        CipherMode.GCM.parameterSpec(iv));
+                byte[] encryptedData = doFinal(cipher, entry.getValue());
+                records.put(entry.getKey(), new SecretVault.Record(CipherMode.GCM, iv,
+                        encryptedData, true));
+            }
+            return records;
+        } catch (GeneralSecurityException e) {
+            Log.w(TAG, "encryptWithDataKey/Failed to encrypt data", e);
+            return null;
+        } finally {
+            dataKeySpec.destroy();
         }
-
-        return true;
     }
 
-    private static byte[] readData(Context context, String fileName) {
-        FileInputStream fis;
-        try {
-            fis = context.openFileInput(fileName);
-        } catch (FileNotFoundException e) {
-            Log.e(TAG, "Failed to read file " + fileName, e);
+    /**
+     * @return the data key, from the cache if it was unwrapped within the authentication window
+     * of the keystore key, which the caller should clear once done with it
+     */
+    @Nullable
+    private static byte[] unwrapDataKey(String keyName, Key secretKey,
+                                        SecretVault.Record wrappedDataKey)
+            throws UserNotAuthenticatedException, UnrecoverableKeyException, AEADBadTagException {
+        byte[] dataKey = dataKeyCache.getBytes(keyName, DATA_KEY_SLOT);
+        if (dataKey != null) {
+            return dataKey;
+        }
+        checkAuthSession(keyName, secretKey);
+        Cipher cipher = newCipher(wrappedDataKey.mode, secretKey);
+        if (cipher == null) {
             return null;
         }
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        try {
-            transfer(fis, baos);
-            fis.close();
-            return baos.toByteArray();
-        } catch (IOException e) {
-            Log.e(TAG, "Failed to read file " + fileName, e);
+        dataKey = decrypt(keyName, secretKey, cipher, wrappedDataKey);
+        if (dataKey == null) {
             return null;
         }
+        long ttlMillis = getDataKeyTtlMillis(keyName, secretKey);
+        if (ttlMillis > 0) {
+            dataKeyCache.put(keyName, DATA_KEY_SLOT, dataKey.clone(), ttlMillis);
+        }
+        return dataKey;
+    }
+
+    /**
+     * The keystore would let the data key be unwrapped again without the user until its
+     * authentication window closes, so it can be kept that long. Keys which need authentication
+     * for every use unwrap it for every operation.
+     */
+    private static long getDataKeyTtlMillis(String keyName, Key key) {
+        KeyStoreBackend.KeyDescription description = describeKey(keyName, key);
+        if (description == null) {
+            return 0;
+        }
+        return getAuthWindowMillis(keyName, description);
     }
 
-    private static void transfer(FileInputStream fis, ByteArrayOutputStream baos) throws IOException {
-        byte buf[] = new byte[1024];
-        int numRead = fis.read(buf);
-        while (numRead > 0) {
-            baos.write(buf, 0, numRead);
-            numRead = fis.read(buf);
+    /**
+     * How long what was decrypted with key can be kept without outliving the authentication
+     * window the keystore enforces for it. The window is counted from when the user
+     * authenticated, not from now, so it is 0 when it is not known when that was, e.g. when the
+     * user unlocked the device rather than going through this module's lock screen.
+     */
+    private static long getAuthWindowMillis(String keyName,
+                                            KeyStoreBackend.KeyDescription description) {
+        if (description.authenticationValidityDurationSeconds <= 0) {
+            return 0;
         }
+        long remainingMillis = authSessions.remainingMillis(keyName,
+                description.authenticationValidityDurationSeconds);
+        return remainingMillis > 0 ? remainingMillis : 0;
     }
 
-    private static void showPrompt(final Activity activity,
-                                   String message,
-                                   String buttonLabel,
-                                   final Intent buttonActionIntent,
-                                   final int requestCodeForReturn,
-                                   final MakeDeviceSecureCallback callback) {
-        if (activity.isDestroyed() || activity.isFinishing()) {
-            Log.w(TAG, "Cannot show dialog, activity is finishing");
-            return;
+    private static byte[] readData(FileStore fileStore, String fileName) {
+        long start = Metrics.begin(Metrics.Phase.FILE_READ);
+        try {
+            return readDataUntimed(fileStore, fileName);
+        } finally {
+            Metrics.end(Metrics.Phase.FILE_READ, start);
+        }
+    }
+
+    private static byte[] readDataUntimed(FileStore fileStore, String fileName) {
+        try {
+            return fileStore.readFully(fileName);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read file " + fileName, e);
+            return null;
         }
-        new AlertDialog.Builder(activity)
-                .setMessage(message)
-                .setPositiveButton(buttonLabel, new DialogInterface.OnClickListener() {
-                    @Override
-                    public void onClick(DialogInterface dialogInterface, int i) {
-                        activity.startActivityForResult(buttonActionIntent, requestCodeForReturn);
-                        callback.onUserTransitionToSetupDeviceLock();
-                    }
-                })
-                .setOnCancelListener(new DialogInterface.OnCancelListener() {
-                    @Override
-                    public void onCancel(DialogInterface dialogInterface) {
-                        callback.onUserCancelled();
-                    }
-                })
-                .show();
     }
 
     interface MakeDeviceSecureCallback {
@@ -0,0 +1,86 @@
+package org.celo.devicecredentials;
+
+import android.app.Activity;
+import android.app.AlertDialog;
+import android.app.KeyguardManager;
+import android.app.admin.DevicePolicyManager;
+import android.content.Context;
+import android.content.DialogInterface;
+import android.content.Intent;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+/**
+ * The device's screen lock, through {@link KeyguardManager}.
+ */
+class AndroidKeyguard implements Keyguard {
+    private static final String TAG = "AndroidKeyguard";
+
+    @Override
+    public boolean isDeviceSecure(Context context) {
+        @Nullable KeyguardManager keyguardManager = getKeyguardManager(context);
+        if (keyguardManager == null) {
+            Log.w(TAG, "Keyguard manager is null");
+            return false;
+        }
+        return keyguardManager.isDeviceSecure();
+    }
+
+    @Override
+    public boolean authenticateUser(Activity activity, int requestCode) {
+        @Nullable KeyguardManager keyguardManager = getKeyguardManager(activity);
+        if (keyguardManager == null) {
+            throw new RuntimeException("Unable to access Keyguard manager");
+        }
+        String title = null;
+        String description = null;
+        Intent intent = keyguardManager.createConfirmDeviceCredentialIntent(title, description);
+        if (intent == null) {
+            return false;
+        }
+        activity.startActivityForResult(intent, requestCode);
+        return true;
+    }
+
+    @Override
+    public void makeDeviceSecure(Activity activity, String description, String buttonLabel,
+                                 int requestCode,
+                                 AndroidKeyStoreHelper.MakeDeviceSecureCallback callback) {
+        Intent buttonActionIntent = new Intent(DevicePolicyManager.ACTION_SET_NEW_PASSWORD);
+        showPrompt(activity, description, buttonLabel, buttonActionIntent, requestCode, callback);
+    }
+
+    private static KeyguardManager getKeyguardManager(Context context) {
+        return (KeyguardManager) context.getSystemService(Context.KEYGUARD_SERVICE);
+    }
+
+    private static void showPrompt(final Activity activity,
+                                   String message,
+                                   String buttonLabel,
+                                   final Intent buttonActionIntent,
+                                   final int requestCodeForReturn,
+                                   final AndroidKeyStoreHelper.MakeDeviceSecureCallback callback) {
+        if (activity.isDestroyed() || activity.isFinishing()) {
+            // Nobody will ever answer, so settle now rather than leave the caller waiting.
+            Log.w(TAG, "Cannot show dialog, activity is finishing");
+            callback.onUserCancelled();
+            return;
+        }
+        new AlertDialog.Builder(activity)
+                .setMessage(message)
+                .setPositiveButton(buttonLabel, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialogInterface, int i) {
+                        activity.startActivityForResult(buttonActionIntent, requestCodeForReturn);
+                        callback.onUserTransitionToSetupDeviceLock();
+                    }
+                })
+                .setOnCancelListener(new DialogInterface.OnCancelListener() {
+                    @Override
+                    public void onCancel(DialogInterface dialogInterface) {
+                        callback.onUserCancelled();
+                    }
+                })
+                .show();
+    }
+}
@@ -0,0 +1,86 @@
+package org.celo.devicecredentials;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Keeps track of whether the authentication window of each key is known to be open or closed,
+ * so callers can skip the lock screen while it is open and go straight to it once it closed,
+ * instead of finding out through a failed keystore operation.
+ *
+ * A window opens when the user confirms their credentials, either in the lock screen shown by
+ * this module or by unlocking the device. The latter can only happen while the app is in the
+ * background, so any state which is not backed by the module's own lock screen is forgotten
+ * when the app comes back to the foreground.
+ */
+class AuthSessionTracker {
+    static final long UNKNOWN = -1;
+
+    private long authenticatedAt = UNKNOWN;
+    // Returning from the lock screen resumes the app right after the authentication, which must
+    // not count as the user possibly having unlocked the device.
+    private boolean awaitingResume;
+    private boolean resumedSinceAuthentication;
+    private final Set<String> closedKeyNames = new HashSet<>();
+
+    /**
+     * The user just confirmed their credentials, which opens the window of every key.
+     */
+    synchronized void onAuthenticated() {
+        authenticatedAt = Clock.get().elapsedRealtime();
+        awaitingResume = true;
+        resumedSinceAuthentication = false;
+        closedKeyNames.clear();
+    }
+
+    /**
+     * The keystore refused to use keyName because the user has not authenticated recently.
+     */
+    synchronized void onWindowClosed(String keyName) {
+        closedKeyNames.add(keyName);
+    }
+
+    synchronized void onResume() {
+        if (awaitingResume) {
+            awaitingResume = false;
+            return;
+        }
+        resumedSinceAuthentication = true;
+        closedKeyNames.clear();
+    }
+
+    synchronized void clear(String keyName) {
+        closedKeyNames.remove(keyName);
+    }
+
+    /**
+     * Forgets everything, as if the user never authenticated.
+     */
+    synchronized void reset() {
+        authenticatedAt = UNKNOWN;
+        awaitingResume = false;
+        resumedSinceAuthentication = false;
+        closedKeyNames.clear();
+    }
+
+    /**
+     * @param validitySeconds the authentication validity duration of keyName
+     * @return how long the window of keyName stays open, 0 if it is known to be closed or
+     * {@link #UNKNOWN}
+     */
+    synchronized long remainingMillis(String keyName, int validitySeconds) {
+        if (closedKeyNames.contains(keyName)) {
+            return 0;
+        }
+        if (authenticatedAt == UNKNOWN || validitySeconds <= 0) {
+            return UNKNOWN;
+        }
+        long remaining = authenticatedAt + validitySeconds * 1000L
+                - Clock.get().elapsedRealtime();
+        if (remaining > 0) {
+            return remaining;
+        }
+        // Nothing could have opened the window again without the app going to the background.
+        return resumedSinceAuthentication ? UNKNOWN : 0;
+    }
+}
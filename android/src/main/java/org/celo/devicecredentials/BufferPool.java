@@ -0,0 +1,68 @@
+package org.celo.devicecredentials;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * A small per thread pool of direct buffers, so streaming a file through the cipher doesn't
+ * allocate fresh native memory for every call. All file work runs on the module's single
+ * background thread, so in practice there is one pool holding the input and output chunk.
+ *
+ * Buffers may have held plain text, they are zeroed before going back to the pool.
+ */
+final class BufferPool {
+    private static final int MAX_POOLED_BUFFERS = 2;
+    private static final int MAX_POOLED_CAPACITY = 256 * 1024;
+
+    private static final ThreadLocal<ArrayDeque<ByteBuffer>> pools =
+            new ThreadLocal<ArrayDeque<ByteBuffer>>() {
+                @Override
+                protected ArrayDeque<ByteBuffer> initialValue() {
+                    return new ArrayDeque<>(MAX_POOLED_BUFFERS);
+                }
+            };
+
+    private BufferPool() {
+    }
+
+    /**
+     * @return a cleared direct buffer with at least capacity bytes, pass it to {@link #release}
+     * once done with it.
+     */
+    static ByteBuffer acquire(int capacity) {
+        Iterator<ByteBuffer> iterator = pools.get().iterator();
+        while (iterator.hasNext()) {
+            ByteBuffer buffer = iterator.next();
+            if (buffer.capacity() >= capacity) {
+                iterator.remove();
+                buffer.clear();
+                return buffer;
+            }
+        }
+        return ByteBuffer.allocateDirect(capacity);
+    }
+
+    static void release(ByteBuffer buffer) {
+        if (!buffer.isDirect() || buffer.capacity() > MAX_POOLED_CAPACITY) {
+            return;
+        }
+        zero(buffer);
+        ArrayDeque<ByteBuffer> pool = pools.get();
+        if (pool.size() >= MAX_POOLED_BUFFERS) {
+            pool.removeFirst();
+        }
+        pool.addLast(buffer);
+    }
+
+    private static void zero(ByteBuffer buffer) {
+        buffer.clear();
+        while (buffer.remaining() >= 8) {
+            buffer.putLong(0);
+        }
+        while (buffer.hasRemaining()) {
+            buffer.put((byte) 0);
+        }
+        buffer.clear();
+    }
+}
@@ -0,0 +1,62 @@
+package org.celo.devicecredentials;
+
+import android.security.keystore.KeyProperties;
+
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import java.security.spec.AlgorithmParameterSpec;
+
+/**
+ * The AES modes a key can be created with. The id is persisted with every encrypted record, so
+ * it must never change for an existing mode.
+ */
+enum CipherMode {
+    CBC((byte) 1, KeyProperties.BLOCK_MODE_CBC, KeyProperties.ENCRYPTION_PADDING_PKCS7,
+            "AES/CBC/PKCS7Padding"),
+    /**
+     * Authenticated encryption, tampered or truncated records fail to decrypt with
+     * {@link javax.crypto.AEADBadTagException}.
+     */
+    GCM((byte) 2, KeyProperties.BLOCK_MODE_GCM, KeyProperties.ENCRYPTION_PADDING_NONE,
+            "AES/GCM/NoPadding");
+
+    private static final int GCM_TAG_LENGTH_BITS = 128;
+    static final int GCM_TAG_LENGTH = GCM_TAG_LENGTH_BITS / 8;
+
+    final byte id;
+    final String blockMode;
+    final String encryptionPadding;
+    final String transformation;
+
+    CipherMode(byte id, String blockMode, String encryptionPadding, String transformation) {
+        this.id = id;
+        this.blockMode = blockMode;
+        this.encryptionPadding = encryptionPadding;
+        this.transformation = transformation;
+    }
+
+    AlgorithmParameterSpec parameterSpec(byte[] iv) {
+        if (this == GCM) {
+            return new GCMParameterSpec(GCM_TAG_LENGTH_BITS, iv);
+        }
+        return new IvParameterSpec(iv);
+    }
+
+    static CipherMode fromId(byte id) {
+        for (CipherMode mode : values()) {
+            if (mode.id == id) {
+                return mode;
+            }
+        }
+        throw new IllegalArgumentException("Unknown cipher mode " + id);
+    }
+
+    static CipherMode fromBlockModes(String[] blockModes) {
+        for (String blockMode : blockModes) {
+            if (GCM.blockMode.equals(blockMode)) {
+                return GCM;
+            }
+        }
+        return CBC;
+    }
+}
@@ -0,0 +1,80 @@
+package org.celo.devicecredentials;
+
+import android.os.Build;
+import android.os.SystemClock;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Where the time used for authentication windows, cache expiry and record timestamps comes from.
+ * The unit tests replace it with a simulated clock to control the time.
+ */
+abstract class Clock {
+    static final Clock SYSTEM = new Clock() {
+        @Override
+        long elapsedRealtime() {
+            return SystemClock.elapsedRealtime();
+        }
+
+        @Override
+        long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        ScheduledExecutorService scheduler() {
+            return SystemScheduler.INSTANCE;
+        }
+    };
+
+    private static volatile Clock current = SYSTEM;
+
+    static Clock get() {
+        return current;
+    }
+
+    static void set(Clock clock) {
+        current = clock;
+    }
+
+    /**
+     * Milliseconds since boot, for measuring durations.
+     */
+    abstract long elapsedRealtime();
+
+    /**
+     * Milliseconds since the epoch, for timestamps.
+     */
+    abstract long currentTimeMillis();
+
+    /**
+     * Runs tasks after a delay measured by this clock, e.g. timeouts.
+     */
+    abstract ScheduledExecutorService scheduler();
+
+    /**
+     * Created on first use, as most processes never schedule anything.
+     */
+    private static class SystemScheduler {
+        static final ScheduledExecutorService INSTANCE = create();
+
+        private static ScheduledExecutorService create() {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1,
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "RNConfirmDeviceCredentialsTimer");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            if (Build.VERSION.SDK_INT >= 21) {
+                // Otherwise cancelled tasks stay queued until they would have run.
+                executor.setRemoveOnCancelPolicy(true);
+            }
+            return executor;
+        }
+    }
+}
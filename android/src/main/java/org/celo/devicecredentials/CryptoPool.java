@@ -0,0 +1,73 @@
+package org.celo.devicecredentials;
+
+import android.support.annotation.Nullable;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKeyFactory;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Per thread instances of the JCA classes used over and over, so each use doesn't go through the
+ * provider registry again. The instances are confined to the thread that created them and must
+ * be initialized before every use, which makes them safe to reuse one operation after another.
+ *
+ * A cipher picks its provider when first initialized and sticks to it, so ciphers are pooled by
+ * transformation and by the kind of key they are used with, keystore keys and in process keys
+ * getting their own instances.
+ */
+final class CryptoPool {
+    private static final ThreadLocal<Map<String, Object>> instances =
+            new ThreadLocal<Map<String, Object>>() {
+                @Override
+                protected Map<String, Object> initialValue() {
+                    return new HashMap<>();
+                }
+            };
+
+    private CryptoPool() {
+    }
+
+    static Cipher cipher(String transformation, Key key)
+            throws NoSuchAlgorithmException, NoSuchPaddingException {
+        String poolKey = "Cipher/" + transformation + "/" + key.getClass().getName();
+        Cipher cipher = (Cipher) instances.get().get(poolKey);
+        if (cipher == null) {
+            cipher = Cipher.getInstance(transformation);
+            instances.get().put(poolKey, cipher);
+        }
+        return cipher;
+    }
+
+    /**
+     * @param provider the provider to use, or null for the default one
+     */
+    static KeyGenerator keyGenerator(String algorithm, @Nullable String provider)
+            throws NoSuchAlgorithmException, NoSuchProviderException {
+        String poolKey = "KeyGenerator/" + algorithm + "/" + provider;
+        KeyGenerator keyGenerator = (KeyGenerator) instances.get().get(poolKey);
+        if (keyGenerator == null) {
+            keyGenerator = provider == null
+                    ? KeyGenerator.getInstance(algorithm)
+                    : KeyGenerator.getInstance(algorithm, provider);
+            instances.get().put(poolKey, keyGenerator);
+        }
+        return keyGenerator;
+    }
+
+    static SecretKeyFactory secretKeyFactory(String algorithm, String provider)
+            throws NoSuchAlgorithmException, NoSuchProviderException {
+        String poolKey = "SecretKeyFactory/" + algorithm + "/" + provider;
+        SecretKeyFactory factory = (SecretKeyFactory) instances.get().get(poolKey);
+        if (factory == null) {
+            factory = SecretKeyFactory.getInstance(algorithm, provider);
+            instances.get().put(poolKey, factory);
+        }
+        return factory;
+    }
+}
@@ -0,0 +1,56 @@
+package org.celo.devicecredentials;
+
+import javax.crypto.SecretKey;
+import javax.security.auth.Destroyable;
+import java.util.Arrays;
+
+/**
+ * An envelope mode data key which, unlike {@link javax.crypto.spec.SecretKeySpec}, holds on to
+ * the array it was created with instead of a copy, so {@link #destroy} clears the only copy the
+ * module made. Providers still copy the key when a cipher is initialized with it.
+ */
+final class DataKey implements SecretKey, Destroyable {
+    private static final String ALGORITHM = "AES";
+
+    private final byte[] key;
+    private volatile boolean destroyed;
+
+    /**
+     * @param key the raw key, owned by this instance from now on
+     */
+    DataKey(byte[] key) {
+        this.key = key;
+    }
+
+    @Override
+    public String getAlgorithm() {
+        return ALGORITHM;
+    }
+
+    @Override
+    public String getFormat() {
+        return "RAW";
+    }
+
+    @Override
+    public byte[] getEncoded() {
+        if (destroyed) {
+            throw new IllegalStateException("Data key destroyed");
+        }
+        return key.clone();
+    }
+
+    /**
+     * Zeroes the key.
+     */
+    @Override
+    public void destroy() {
+        destroyed = true;
+        Arrays.fill(key, (byte) 0);
+    }
+
+    @Override
+    public boolean isDestroyed() {
+        return destroyed;
+    }
+}
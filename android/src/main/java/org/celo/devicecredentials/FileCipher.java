@@ -0,0 +1,203 @@
+package org.celo.devicecredentials;
+
+import android.support.annotation.Nullable;
+
+import javax.crypto.Cipher;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+
+/**
+ * Encrypts and decrypts files of any size by streaming them through a cipher in fixed size
+ * chunks, so memory use doesn't grow with the file.
+ *
+ * An encrypted file starts with {@link #MAGIC}, {@link #VERSION}, the id of the cipher mode and
+ * the length of the IV followed by the IV, then the cipher text. The output is written to a
+ * temporary file which replaces the destination only once the whole file has been processed.
+ *
+ * Note that the Android Key Store buffers the whole cipher text when decrypting with GCM, as it
+ * cannot release any plain text before verifying the tag. So files larger than
+ * {@link #MAX_GCM_FILE_SIZE} are refused for GCM keys, CBC keys are a better fit for them.
+ */
+class FileCipher {
+    static final int CHUNK_SIZE = 64 * 1024;
+    /**
+     * The largest file GCM keys encrypt or decrypt, the keystore holds all of it in memory.
+     */
+    static final long MAX_GCM_FILE_SIZE = 16 * 1024 * 1024;
+
+    private static final int MAGIC = 0x52434645;
+    private static final byte VERSION = 1;
+    private static final int FIXED_HEADER_SIZE = 4 + 1 + 1 + 1;
+    private static final String TEMP_FILENAME_SUFFIX = ".tmp";
+    // Report progress about every megabyte rather than for every chunk.
+    private static final int CHUNKS_PER_PROGRESS_REPORT = 16;
+
+    interface ProgressListener {
+        void onProgress(long processedBytes, long totalBytes);
+    }
+
+    static class Header {
+        final CipherMode mode;
+        final byte[] iv;
+        final int size;
+
+        Header(CipherMode mode, byte[] iv) {
+            this.mode = mode;
+            this.iv = iv;
+            this.size = FIXED_HEADER_SIZE + iv.length;
+        }
+    }
+
+    /**
+     * @param cipher initialized for encryption with a key restricted to mode
+     */
+    static void encrypt(Cipher cipher, CipherMode mode, File source, File destination,
+                        @Nullable ProgressListener listener)
+            throws IOException, GeneralSecurityException {
+        byte[] iv = cipher.getIV();
+        ByteBuffer header = ByteBuffer.allocate(FIXED_HEADER_SIZE + iv.length);
+        header.putInt(MAGIC).put(VERSION).put(mode.id).put((byte) iv.length).put(iv);
+        header.flip();
+        transform(cipher, source, 0, header, destination, listener);
+    }
+
+    static Header readHeader(File source) throws IOException {
+        FileInputStream fis = new FileInputStream(source);
+        try {
+            FileChannel channel = fis.getChannel();
+            ByteBuffer fixedHeader = ByteBuffer.allocate(FIXED_HEADER_SIZE);
+            readFully(channel, fixedHeader);
+            if (fixedHeader.getInt() != MAGIC) {
+                throw new IOException("Not an encrypted file");
+            }
+            byte version = fixedHeader.get();
+            if (version > VERSION) {
+                throw new IOException("Unsupported encrypted file version " + version);
+            }
+            CipherMode mode;
+            try {
+                mode = CipherMode.fromId(fixedHeader.get());
+            } catch (IllegalArgumentException e) {
+                throw new IOException(e.getMessage());
+            }
+            ByteBuffer iv = ByteBuffer.allocate(fixedHeader.get() & 0xff);
+            readFully(channel, iv);
+            return new Header(mode, iv.array());
+        } finally {
+            fis.close();
+        }
+    }
+
+    /**
+     * @param cipher initialized for decryption with the mode and IV of header
+     */
+    static void decrypt(Cipher cipher, Header header, File source, File destination,
+                        @Nullable ProgressListener listener)
+            throws IOException, GeneralSecurityException {
+        transform(cipher, source, header.size, null, destination, listener);
+    }
+
+    private static void transform(Cipher cipher, File source, long sourceOffset,
+                                  @Nullable ByteBuffer header, File destination,
+                                  @Nullable ProgressListener listener)
+            throws IOException, GeneralSecurityException {
+        File tempFile = new File(destination.getPath() + TEMP_FILENAME_SUFFIX);
+        FileInputStream fis = new FileInputStream(source);
+        FileOutputStream fos = null;
+        ByteBuffer input = null;
+        ByteBuffer output = null;
+        boolean success = false;
+        try {
+            fos = new FileOutputStream(tempFile);
+            FileChannel in = fis.getChannel();
+            FileChannel out = fos.getChannel();
+            if (header != null) {
+                writeFully(out, header);
+            }
+
+            long totalBytes = in.size() - sourceOffset;
+            long processedBytes = 0;
+            int chunks = 0;
+            input = BufferPool.acquire(CHUNK_SIZE);
+            output = BufferPool.acquire(cipher.getOutputSize(CHUNK_SIZE));
+            in.position(sourceOffset);
+            int read;
+            while ((read = in.read(input)) >= 0) {
+                input.flip();
+                output = ensureCapacity(output, cipher.getOutputSize(input.remaining()));
+                cipher.update(input, output);
+                output.flip();
+                writeFully(out, output);
+                input.clear();
+
+                processedBytes += read;
+                if (listener != null && ++chunks % CHUNKS_PER_PROGRESS_REPORT == 0) {
+                    listener.onProgress(processedBytes, totalBytes);
+                }
+            }
+            input.flip();
+            output = ensureCapacity(output, cipher.getOutputSize(0));
+            cipher.doFinal(input, output);
+            output.flip();
+            writeFully(out, output);
+            fos.getFD().sync();
+            if (listener != null) {
+                listener.onProgress(processedBytes, totalBytes);
+            }
+            success = true;
+        } finally {
+            if (input != null) {
+                BufferPool.release(input);
+            }
+            if (output != null) {
+                BufferPool.release(output);
+            }
+            fis.close();
+            if (fos != null) {
+                fos.close();
+            }
+            if (!success) {
+                tempFile.delete();
+            }
+        }
+        if (!tempFile.renameTo(destination)) {
+            tempFile.delete();
+            throw new IOException("Failed to replace " + destination);
+        }
+        FileStore.syncDirectory(destination.getAbsoluteFile().getParentFile());
+    }
+
+    /**
+     * @return output if it can hold size bytes, otherwise a large enough buffer from the pool
+     * which replaces output. The returned buffer is always cleared.
+     */
+    private static ByteBuffer ensureCapacity(ByteBuffer output, int size) {
+        if (output.capacity() >= size) {
+            output.clear();
+            return output;
+        }
+        ByteBuffer larger = BufferPool.acquire(size);
+        BufferPool.release(output);
+        return larger;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+        buffer.flip();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package org.celo.devicecredentials;
+
+import android.content.Context;
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * The private directory holding the encrypted secrets. On devices this is the app's files
+ * directory, the same files {@link Context#openFileOutput} would create, but any directory works,
+ * e.g. a temporary one when running on a plain JVM.
+ *
+ * Renames and deletes are made durable by syncing the directory. Within a batch, see
+ * {@link #beginBatch}, that happens once at the end instead of after every change.
+ */
+class FileStore {
+    private static final String TAG = "FileStore";
+    private static final String TEMP_FILENAME_SUFFIX = ".tmp";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File directory;
+    private int batchDepth;
+    private boolean directoryChanged;
+
+    FileStore(File directory) {
+        this.directory = directory;
+    }
+
+    static FileStore forContext(Context context) {
+        return new FileStore(context.getFilesDir());
+    }
+
+    File file(String fileName) {
+        return new File(directory, fileName);
+    }
+
+    boolean exists(String fileName) {
+        return file(fileName).exists();
+    }
+
+    FileInputStream openInput(String fileName) throws FileNotFoundException {
+        return new FileInputStream(file(fileName));
+    }
+
+    /**
+     * Reads the whole file into an array sized from the file length, using positional reads so
+     * small files take a single read call and no intermediate buffer. Reading through a
+     * {@link BufferPool} buffer was measured slower, the channel already reuses its own
+     * temporary direct buffer and the pooled one adds a copy and zeroing.
+     */
+    byte[] readFully(String fileName) throws IOException {
+        FileInputStream fis = openInput(fileName);
+        try {
+            FileChannel channel = fis.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File too large " + fileName);
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(new byte[(int) size]);
+            long position = 0;
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new IOException("Unexpected end of file " + fileName);
+                }
+                position += read;
+            }
+            return buffer.array();
+        } finally {
+            fis.close();
+        }
+    }
+
+    FileOutputStream openOutput(String fileName) throws FileNotFoundException {
+        return new FileOutputStream(file(fileName));
+    }
+
+    /**
+     * Writes contents to a temporary file, syncs it and renames it over fileName, so a crash
+     * leaves either the old or the new contents.
+     */
+    void replace(String fileName, byte[] contents) throws IOException {
+        String tempFileName = fileName + TEMP_FILENAME_SUFFIX;
+        FileOutputStream fos = openOutput(tempFileName);
+        try {
+            fos.write(contents);
+            fos.getFD().sync();
+        } catch (IOException e) {
+            fos.close();
+            delete(tempFileName);
+            throw e;
+        }
+        fos.close();
+        if (!rename(tempFileName, fileName)) {
+            delete(tempFileName);
+            throw new IOException("Failed to replace " + fileName);
+        }
+    }
+
+    /**
+     * Atomically replaces toFileName, which fromFileName should have been synced to disk first.
+     */
+    boolean rename(String fromFileName, String toFileName) {
+        if (!file(fromFileName).renameTo(file(toFileName))) {
+            return false;
+        }
+        onDirectoryChanged();
+        return true;
+    }
+
+    boolean delete(String fileName) {
+        if (!file(fileName).delete()) {
+            return false;
+        }
+        onDirectoryChanged();
+        return true;
+    }
+
+    /**
+     * Defers syncing the directory after renames and deletes until the matching
+     * {@link #endBatch}, so that a logical operation changing several files syncs it once.
+     */
+    synchronized void beginBatch() {
+        batchDepth++;
+    }
+
+    synchronized void endBatch() {
+        if (--batchDepth == 0 && directoryChanged) {
+            directoryChanged = false;
+            syncDirectory(directory);
+        }
+    }
+
+    private synchronized void onDirectoryChanged() {
+        if (batchDepth > 0) {
+            directoryChanged = true;
+        } else {
+            syncDirectory(directory);
+        }
+    }
+
+    /**
+     * Names come from JS and may contain characters that are not valid in a file name.
+     */
+    static String fileNameFor(String prefix, String name) {
+        byte[] bytes = name.getBytes(UTF_8);
+        StringBuilder builder = new StringBuilder(prefix.length() + bytes.length * 2);
+        builder.append(prefix);
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+            builder.append(Character.forDigit(b & 0xf, 16));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Makes the renames and deletes in directory survive a crash or power loss, syncing the file
+     * alone doesn't persist the directory entry pointing to it.
+     */
+    static void syncDirectory(File directory) {
+        if (Build.VERSION.SDK_INT < 21) {
+            return;
+        }
+        try {
+            FileDescriptor fd = Os.open(directory.getPath(), OsConstants.O_RDONLY, 0);
+            try {
+                Os.fsync(fd);
+            } finally {
+                Os.close(fd);
+            }
+        } catch (ErrnoException e) {
+            Log.w(TAG, "Failed to sync " + directory, e);
+        }
+    }
+}
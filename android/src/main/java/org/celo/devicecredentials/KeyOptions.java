@@ -0,0 +1,61 @@
+package org.celo.devicecredentials;
+
+import com.facebook.react.bridge.ReadableMap;
+
+/**
+ * The configuration of a keystore key as passed from JS.
+ */
+class KeyOptions {
+    private static final String REAUTHENTICATION_TIMEOUT = "reauthenticationTimeoutInSecs";
+    private static final String INVALIDATE_BY_NEW_BIOMETRIC_ENROLLMENT =
+            "invalidateKeyByNewBiometricEnrollment";
+    private static final String CIPHER_MODE = "cipherMode";
+    private static final String ENVELOPE = "envelope";
+
+    final int reauthenticationTimeoutInSecs;
+    final boolean invalidateKeyByNewBiometricEnrollment;
+    final CipherMode cipherMode;
+    /**
+     * Whether secrets are encrypted with a data key wrapped by the keystore key, see
+     * {@link SecretVault}.
+     */
+    final boolean envelope;
+
+    KeyOptions(int reauthenticationTimeoutInSecs,
+               boolean invalidateKeyByNewBiometricEnrollment,
+               CipherMode cipherMode) {
+        this(reauthenticationTimeoutInSecs, invalidateKeyByNewBiometricEnrollment, cipherMode,
+                false);
+    }
+
+    KeyOptions(int reauthenticationTimeoutInSecs,
+               boolean invalidateKeyByNewBiometricEnrollment,
+               CipherMode cipherMode,
+               boolean envelope) {
+        this.reauthenticationTimeoutInSecs = reauthenticationTimeoutInSecs;
+        this.invalidateKeyByNewBiometricEnrollment = invalidateKeyByNewBiometricEnrollment;
+        this.cipherMode = cipherMode;
+        this.envelope = envelope;
+    }
+
+    /**
+     * reauthenticationTimeoutInSecs is required, invalidateKeyByNewBiometricEnrollment defaults
+     * to false, cipherMode, either "CBC" or "GCM", defaults to "CBC" and envelope defaults to
+     * false.
+     */
+    static KeyOptions fromMap(ReadableMap options) {
+        if (!options.hasKey(REAUTHENTICATION_TIMEOUT)) {
+            throw new IllegalArgumentException(REAUTHENTICATION_TIMEOUT + " is required");
+        }
+        boolean invalidateKeyByNewBiometricEnrollment =
+                options.hasKey(INVALIDATE_BY_NEW_BIOMETRIC_ENROLLMENT)
+                        && options.getBoolean(INVALIDATE_BY_NEW_BIOMETRIC_ENROLLMENT);
+        CipherMode cipherMode = CipherMode.CBC;
+        if (options.hasKey(CIPHER_MODE) && !options.isNull(CIPHER_MODE)) {
+            cipherMode = CipherMode.valueOf(options.getString(CIPHER_MODE));
+        }
+        boolean envelope = options.hasKey(ENVELOPE) && options.getBoolean(ENVELOPE);
+        return new KeyOptions(options.getInt(REAUTHENTICATION_TIMEOUT),
+                invalidateKeyByNewBiometricEnrollment, cipherMode, envelope);
+    }
+}
@@ -0,0 +1,23 @@
+package org.celo.devicecredentials;
+
+/**
+ * Whether a key can still be used, as reported to JS in security state events.
+ */
+enum KeyState {
+    VALID("valid"),
+    /**
+     * The key exists but can never be used again, e.g. because the screen lock was removed or a
+     * new fingerprint was enrolled.
+     */
+    INVALIDATED("invalidated"),
+    /**
+     * Some devices delete the keys which need authentication when the screen lock is removed.
+     */
+    MISSING("missing");
+
+    final String jsName;
+
+    KeyState(String jsName) {
+        this.jsName = jsName;
+    }
+}
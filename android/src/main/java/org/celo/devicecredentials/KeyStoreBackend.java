@@ -0,0 +1,74 @@
+package org.celo.devicecredentials;
+
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.UnrecoverableKeyException;
+import java.util.List;
+
+/**
+ * Where the keys protecting the stored secrets live. {@link AndroidKeyStoreBackend} is used on
+ * devices, other implementations let the storage code run without the Android Key Store.
+ */
+interface KeyStoreBackend {
+    /**
+     * @return the key named keyName, or null if there is no such key
+     * @throws UnrecoverableKeyException if the key exists but can no longer be used, e.g. because
+     * the user removed the screen lock
+     */
+    @Nullable
+    Key getKey(String keyName) throws GeneralSecurityException, IOException;
+
+    void generateKey(String keyName, KeyOptions options) throws GeneralSecurityException, IOException;
+
+    void deleteKey(String keyName) throws GeneralSecurityException, IOException;
+
+    /**
+     * @return whether there is a key named keyName, usable or not, without loading it
+     */
+    boolean containsAlias(String keyName) throws GeneralSecurityException, IOException;
+
+    /**
+     * @return the names of all the keys, read in a single pass over the store
+     */
+    List<String> aliases() throws GeneralSecurityException, IOException;
+
+    KeyDescription describeKey(String keyName, Key key) throws GeneralSecurityException;
+
+    /**
+     * Called before a cipher is initialized with key, which may also be a data key not issued by
+     * the backend. The Android Key Store does its checks when the cipher is initialized, other
+     * backends can refuse their keys here the same way.
+     * @throws android.security.keystore.UserNotAuthenticatedException if the user has not
+     * authenticated recently enough to use key
+     * @throws android.security.keystore.KeyPermanentlyInvalidatedException if key can never be
+     * used again
+     */
+    void checkKeyUsable(Key key) throws InvalidKeyException;
+
+    /**
+     * Does the one time setup which would otherwise slow down the first real operation, e.g.
+     * resolving providers and connecting to the keystore.
+     */
+    void prewarm() throws GeneralSecurityException, IOException;
+
+    /**
+     * The properties of an existing key which matter for encrypting with it.
+     */
+    class KeyDescription {
+        final CipherMode cipherMode;
+        /**
+         * How long the key can be used after the user authenticated, 0 or less if the user must
+         * authenticate for every use.
+         */
+        final int authenticationValidityDurationSeconds;
+
+        KeyDescription(CipherMode cipherMode, int authenticationValidityDurationSeconds) {
+            this.cipherMode = cipherMode;
+            this.authenticationValidityDurationSeconds = authenticationValidityDurationSeconds;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package org.celo.devicecredentials;
+
+import android.app.Activity;
+import android.content.Context;
+
+/**
+ * The device's screen lock, as far as the module uses it. {@link AndroidKeyguard} is used on
+ * devices, the unit tests simulate it to run the flows which need the user without one.
+ */
+interface Keyguard {
+    boolean isDeviceSecure(Context context);
+
+    /**
+     * Starts the lock screen for the user to confirm their credentials, with the result delivered
+     * to the activity's onActivityResult under requestCode.
+     * @return whether the lock screen was started, it isn't if the device is not secure
+     */
+    boolean authenticateUser(Activity activity, int requestCode);
+
+    /**
+     * Asks the user to set up a screen lock, and if they agree starts the settings with the
+     * result delivered under requestCode.
+     */
+    void makeDeviceSecure(Activity activity, String description, String buttonLabel,
+                          int requestCode, AndroidKeyStoreHelper.MakeDeviceSecureCallback callback);
+}
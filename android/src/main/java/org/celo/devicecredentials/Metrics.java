@@ -0,0 +1,115 @@
+package org.celo.devicecredentials;
+
+import android.os.Build;
+import android.os.Trace;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms for each phase of storing and retrieving secrets. Recording is
+ * a handful of atomic increments, so it is always on. Phases which start and end on the same
+ * thread are also visible as trace sections in systrace/Perfetto, on API 18 and up.
+ */
+final class Metrics {
+    static final long[] BUCKET_UPPER_BOUNDS_MICROS = {
+            100, 250, 500, 1_000, 2_500, 5_000, 10_000, 25_000, 50_000, 100_000, 250_000,
+            500_000, 1_000_000, 5_000_000, Long.MAX_VALUE
+    };
+
+    enum Phase {
+        KEYSTORE_LOAD("keystoreLoad"),
+        KEY_LOOKUP("keyLookup"),
+        CIPHER_INIT("cipherInit"),
+        CIPHER_DO_FINAL("cipherDoFinal"),
+        FILE_READ("fileRead"),
+        FILE_WRITE("fileWrite"),
+        /**
+         * Time spent in the confirm device credentials activity, it is not traced since it
+         * starts and ends on different threads.
+         */
+        AUTHENTICATION("authentication"),
+        /**
+         * The background warm-up, comparing it with the keystoreLoad and keyLookup of a cold
+         * start shows what it saves.
+         */
+        PREWARM("prewarm");
+
+        final String metricName;
+        final String traceSectionName;
+
+        Phase(String metricName) {
+            this.metricName = metricName;
+            this.traceSectionName = "RNConfirmDeviceCredentials." + metricName;
+        }
+    }
+
+    private static final int COUNT = 0;
+    private static final int TOTAL_NANOS = 1;
+    private static final int MAX_NANOS = 2;
+    private static final int FIRST_BUCKET = 3;
+    private static final int SLOTS_PER_PHASE = FIRST_BUCKET + BUCKET_UPPER_BOUNDS_MICROS.length;
+
+    private static final boolean TRACING =
+            Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+
+    private static final AtomicLongArray values =
+            new AtomicLongArray(Phase.values().length * SLOTS_PER_PHASE);
+
+    private Metrics() {
+    }
+
+    /**
+     * Starts timing phase on the current thread, pass the result to {@link #end}.
+     */
+    static long begin(Phase phase) {
+        if (TRACING) {
+            Trace.beginSection(phase.traceSectionName);
+        }
+        return System.nanoTime();
+    }
+
+    static void end(Phase phase, long startNanos) {
+        record(phase, System.nanoTime() - startNanos);
+        if (TRACING) {
+            Trace.endSection();
+        }
+    }
+
+    static void record(Phase phase, long durationNanos) {
+        int base = phase.ordinal() * SLOTS_PER_PHASE;
+        values.incrementAndGet(base + COUNT);
+        values.addAndGet(base + TOTAL_NANOS, durationNanos);
+        long max = values.get(base + MAX_NANOS);
+        while (durationNanos > max && !values.compareAndSet(base + MAX_NANOS, max, durationNanos)) {
+            max = values.get(base + MAX_NANOS);
+        }
+        long durationMicros = durationNanos / 1000;
+        int bucket = 0;
+        while (durationMicros > BUCKET_UPPER_BOUNDS_MICROS[bucket]) {
+            bucket++;
+        }
+        values.incrementAndGet(base + FIRST_BUCKET + bucket);
+    }
+
+    static long count(Phase phase) {
+        return values.get(phase.ordinal() * SLOTS_PER_PHASE + COUNT);
+    }
+
+    static long totalNanos(Phase phase) {
+        return values.get(phase.ordinal() * SLOTS_PER_PHASE + TOTAL_NANOS);
+    }
+
+    static long maxNanos(Phase phase) {
+        return values.get(phase.ordinal() * SLOTS_PER_PHASE + MAX_NANOS);
+    }
+
+    static long bucketCount(Phase phase, int bucket) {
+        return values.get(phase.ordinal() * SLOTS_PER_PHASE + FIRST_BUCKET + bucket);
+    }
+
+    static void reset() {
+        for (int i = 0; i < values.length(); i++) {
+            values.set(i, 0);
+        }
+    }
+}
@@ -2,26 +2,54 @@ package org.celo.devicecredentials;
 
 
 import android.app.Activity;
-import android.content.Intent;
 import android.security.keystore.UserNotAuthenticatedException;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
-import com.facebook.react.bridge.ActivityEventListener;
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.LifecycleEventListener;
 import com.facebook.react.bridge.Promise;
 import com.facebook.react.bridge.ReactApplicationContext;
-import com.facebook.react.bridge.ReactContextBaseJavaModule;
 import com.facebook.react.bridge.ReactMethod;
 
 import com.facebook.react.bridge.ReactApplicationContext;
-import com.facebook.react.bridge.ReactContextBaseJavaModule;
 import com.facebook.react.bridge.ReactMethod;
 import com.facebook.react.bridge.Promise;
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.ReadableMapKeySetIterator;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
 
+import java.io.File;
 import java.security.UnrecoverableKeyException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import javax.crypto.AEADBadTagException;
 
-public class RNConfirmDeviceCredentialsModule extends ReactContextBaseJavaModule {
 
+/**
+ * Extends the spec generated from src/NativeConfirmDeviceCredentials.js on hosts with the new
+ * architecture, so it is a TurboModule there and a legacy module otherwise, see
+ * {@link RNConfirmDeviceCredentialsModuleBase}. JS numbers declared as Int32 in the spec arrive
+ * as doubles.
+ */
+public class RNConfirmDeviceCredentialsModule extends RNConfirmDeviceCredentialsModuleBase
+        implements LifecycleEventListener {
+
+    static final String NAME = "ConfirmDeviceCredentials";
     private static final String TAG = "RNonfirmDeviceCredentialsModule";
     private static final String DEVICE_SECURE_ERROR = "DEVICE_SECURE_ERROR";
     private static final String MAKE_DEVICE_SECURE_ERROR = "MAKE_DEVICE_SECURE_ERROR";
@@ -31,19 +59,150 @@ public class RNConfirmDeviceCredentialsModule extends ReactContextBaseJavaModule
     private static final String RETRIEVE_PIN_ERROR = "RETRIEVE_PIN_ERROR";
     private static final String UNRECOVERABLE_PIN_ERROR = "UNRECOVERABLE_PIN_ERROR";
     private static final String DELETE_KEY_ERROR = "DELETE_KEY_ERROR";
+    private static final String STORE_SECRET_ERROR = "STORE_SECRET_ERROR";
+    private static final String RETRIEVE_SECRET_ERROR = "RETRIEVE_SECRET_ERROR";
+    private static final String DELETE_SECRET_ERROR = "DELETE_SECRET_ERROR";
+    private static final String SECRET_INTEGRITY_ERROR = "SECRET_INTEGRITY_ERROR";
+    private static final String ENCRYPT_FILE_ERROR = "ENCRYPT_FILE_ERROR";
+    private static final String DECRYPT_FILE_ERROR = "DECRYPT_FILE_ERROR";
+    private static final String PREWARM_ERROR = "PREWARM_ERROR";
+    private static final String LIST_KEYS_ERROR = "LIST_KEYS_ERROR";
+    private static final String AUTH_SESSION_ERROR = "AUTH_SESSION_ERROR";
+    private static final String ROTATE_KEY_ERROR = "ROTATE_KEY_ERROR";
+    private static final String SECURITY_STATE_ERROR = "SECURITY_STATE_ERROR";
+    private static final String SECRET_INFO_ERROR = "SECRET_INFO_ERROR";
+
+    private static final String FILE_CRYPTO_PROGRESS_EVENT = "fileCryptoProgress";
+    private static final String SECURITY_STATE_CHANGED_EVENT = "securityStateChanged";
+
+    private static final int MAX_PENDING_OPERATIONS = 64;
+
+    // Keystore, cipher and file work runs here instead of on the shared native modules thread,
+    // so a slow keystore operation cannot stall other modules. A single worker also serializes
+    // access to the files written by AndroidKeyStoreHelper.
+    private final ExecutorService executor;
+
+    private final ActivityResultDispatcher activityResultDispatcher;
+
+    private final SecurityStateMonitor securityStateMonitor;
 
-    private static final int AUTH_FOR_ENCRYPT_REQUEST_CODE = 1;
-    private static final int AUTH_FOR_DECRYPT_REQUEST_CODE = 2;
-    private static final int REQUEST_CODE_FOR_SET_PASSWORD_ACTION = 3;
+    // Callers waiting on the authentication in flight for each key name.
+    private final Map<String, List<PendingAuthentication>> pendingAuthentications =
+            new HashMap<>();
 
 
     public RNConfirmDeviceCredentialsModule(ReactApplicationContext reactContext) {
+        this(reactContext, false);
+    }
+
+    /**
+     * @param prewarm whether to load the keystore and resolve the cipher providers in the
+     *                background right away, so the first operation doesn't wait for them
+     */
+    public RNConfirmDeviceCredentialsModule(ReactApplicationContext reactContext, boolean prewarm) {
+        this(reactContext, prewarm, Clock.get().scheduler());
+    }
+
+    /**
+     * @param scheduler where the activity result timeouts run
+     */
+    RNConfirmDeviceCredentialsModule(ReactApplicationContext reactContext, boolean prewarm,
+                                     ScheduledExecutorService scheduler) {
         super(reactContext);
+        activityResultDispatcher = new ActivityResultDispatcher(scheduler);
+        executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(MAX_PENDING_OPERATIONS),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        return new Thread(runnable, "RNConfirmDeviceCredentials");
+                    }
+                });
+        securityStateMonitor = new SecurityStateMonitor(reactContext, executor,
+                new SecurityStateMonitor.Listener() {
+                    @Override
+                    public void onSecurityStateChanged(SecurityStateMonitor.State state) {
+                        sendEvent(SECURITY_STATE_CHANGED_EVENT, toWritableMap(state));
+                    }
+                });
+        reactContext.addLifecycleEventListener(this);
+        reactContext.addActivityEventListener(activityResultDispatcher);
+        if (prewarm) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    AndroidKeyStoreHelper.prewarm(null);
+                }
+            });
+        }
     }
 
     @Override
     public String getName() {
-        return "ConfirmDeviceCredentials";
+        return NAME;
+    }
+
+    /**
+     * The device secure state when the module was set up, so JS can pick its first screen
+     * without waiting on the bridge. Use {@link #isDeviceSecureSync} for the current state.
+     */
+    @Override
+    protected Map<String, Object> getTypedExportedConstants() {
+        Map<String, Object> constants = new HashMap<>();
+        constants.put("initialIsDeviceSecure",
+                AndroidKeyStoreHelper.isDeviceSecure(getReactApplicationContext()));
+        return constants;
+    }
+
+    @Override
+    public void onCatalystInstanceDestroy() {
+        getReactApplicationContext().removeLifecycleEventListener(this);
+        getReactApplicationContext().removeActivityEventListener(activityResultDispatcher);
+        securityStateMonitor.stop();
+        AndroidKeyStoreHelper.clearSecretCache();
+        AndroidKeyStoreHelper.clearDataKeyCache();
+        executor.shutdown();
+    }
+
+    @Override
+    public void onHostResume() {
+        AndroidKeyStoreHelper.onAppResumed();
+        // The screen lock or the enrolled biometrics may have changed in the settings.
+        securityStateMonitor.requestCheck();
+    }
+
+    @Override
+    public void onHostPause() {
+        // Decrypted secrets and data keys must not outlive the app being in the foreground.
+        AndroidKeyStoreHelper.clearSecretCache();
+        AndroidKeyStoreHelper.clearDataKeyCache();
+    }
+
+    @Override
+    public void onHostDestroy() {
+        AndroidKeyStoreHelper.clearSecretCache();
+        AndroidKeyStoreHelper.clearDataKeyCache();
+    }
+
+    /**
+     * The activity results still awaited, which must drop back to 0 once every operation has
+     * settled, e.g. when checking for leaks in the unit tests.
+     */
+    int pendingActivityResultCount() {
+        return activityResultDispatcher.pendingCount();
+    }
+
+    /**
+     * Runs task on the background executor, rejecting promise with errorCode if the executor
+     * cannot accept more work.
+     */
+    private void runInBackground(Runnable task, Promise promise, String errorCode) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "runInBackground/too many pending operations", e);
+            promise.reject(errorCode, e);
+        }
     }
 
     @ReactMethod
@@ -55,48 +214,75 @@ public class RNConfirmDeviceCredentialsModule extends ReactContextBaseJavaModule
         }
     }
 
+    /**
+     * Blocks the JS thread, which is fine since asking the keyguard is cheap.
+     */
+    @ReactMethod(isBlockingSynchronousMethod = true)
+    public boolean isDeviceSecureSync() {
+        return AndroidKeyStoreHelper.isDeviceSecure(getReactApplicationContext());
+    }
+
+    /**
+     * Blocks the JS thread on a keystore lookup every time, as the answer has to reflect keys
+     * deleted behind the module's back. Prefer {@link #keysExist} off the startup path.
+     */
+    @ReactMethod(isBlockingSynchronousMethod = true)
+    public boolean keyExistsSync(String keyName) {
+        return AndroidKeyStoreHelper.keyExists(keyName);
+    }
+
+    /**
+     * Warms up the keystore and ciphers in the background and looks up keyName, if given, so a
+     * following operation on it doesn't have to. Resolves once done, with false if something
+     * failed, which the real operation will then report.
+     */
     @ReactMethod
-    public void makeDeviceSecure(String message, String actionButtonLabel, final Promise promise) {
-        final ActivityEventListener activityEventListener = new ActivityEventListener() {
+    public void prewarm(final String keyName, final Promise promise) {
+        runInBackground(new Runnable() {
             @Override
-            public void onActivityResult(Activity activity,
-                                         int requestcode,
-                                         int resultCode,
-                                         Intent intent) {
-                if (requestcode == REQUEST_CODE_FOR_SET_PASSWORD_ACTION) {
-                    if (AndroidKeyStoreHelper.isDeviceSecure(getReactApplicationContext())) {
-                        promise.resolve(true);
-                    } else if (resultCode == Activity.RESULT_OK) {
-                        // Retry since now the user is authenticated.
-                        Log.d(TAG, "makeDeviceSecure/onActivityResult/ok");
-                        promise.resolve(AndroidKeyStoreHelper.isDeviceSecure(
-                                getReactApplicationContext()));
-                    } else {
-                        // User decided to reject authentication.
-                        Log.d(TAG, "makeDeviceSecure/onActivityResult/user-canceled-setup/" + resultCode);
-                        promise.reject(MAKE_DEVICE_SECURE_ERROR, "User canceled setup");
-                    }
-                }
-                getReactApplicationContext().removeActivityEventListener(this);
+            public void run() {
+                promise.resolve(AndroidKeyStoreHelper.prewarm(keyName));
             }
+        }, promise, PREWARM_ERROR);
+    }
 
-            @Override
-            public void onNewIntent(Intent intent) {
-                // Do nothing
-            }
-        };
+    @ReactMethod
+    public void makeDeviceSecure(String message, String actionButtonLabel, final Promise promise) {
+        final int requestCode = activityResultDispatcher.register(
+                new ActivityResultDispatcher.Callback() {
+                    @Override
+                    public void onActivityResult(int resultCode) {
+                        if (AndroidKeyStoreHelper.isDeviceSecure(getReactApplicationContext())) {
+                            promise.resolve(true);
+                        } else if (resultCode == Activity.RESULT_OK) {
+                            // Retry since now the user is authenticated.
+                            Log.d(TAG, "makeDeviceSecure/onActivityResult/ok");
+                            promise.resolve(AndroidKeyStoreHelper.isDeviceSecure(
+                                    getReactApplicationContext()));
+                        } else {
+                            // User decided to reject authentication.
+                            Log.d(TAG, "makeDeviceSecure/onActivityResult/user-canceled-setup/" + resultCode);
+                            promise.reject(MAKE_DEVICE_SECURE_ERROR, "User canceled setup");
+                        }
+                    }
+                });
+        if (requestCode < 0) {
+            promise.reject(MAKE_DEVICE_SECURE_ERROR, "Too many pending operations");
+            return;
+        }
 
         AndroidKeyStoreHelper.MakeDeviceSecureCallback makeDeviceSecureCallback =
                 new AndroidKeyStoreHelper.MakeDeviceSecureCallback() {
                     @Override
                     public void onUserCancelled() {
                         Log.d(TAG, "makeDeviceSecure/onUserCancelled");
+                        activityResultDispatcher.cancel(requestCode);
                         promise.reject(MAKE_DEVICE_SECURE_ERROR, "User dismissed dialog");
                     }
 
                     @Override
                     public void onUserTransitionToSetupDeviceLock() {
-                        getReactApplicationContext().addActivityEventListener(activityEventListener);
+                        Log.d(TAG, "makeDeviceSecure/onUserTransitionToSetupDeviceLock");
                     }
                 };
         try {
@@ -104,10 +290,11 @@ public class RNConfirmDeviceCredentialsModule extends ReactContextBaseJavaModule
                     getCurrentActivity(),
                     message,
                     actionButtonLabel,
-                    REQUEST_CODE_FOR_SET_PASSWORD_ACTION,
+                    requestCode,
                     makeDeviceSecureCallback);
         } catch (Exception e) {
             Log.d(TAG, "makeDeviceSecure/error", e);
+            activityResultDispatcher.cancel(requestCode);
             promise.reject(MAKE_DEVICE_SECURE_ERROR, e);
         }
     }
@@ -118,18 +305,53 @@ public class RNConfirmDeviceCredentialsModule extends ReactContextBaseJavaModule
      * changed after this call. The only way to re-configure them is to first {@see #deleteKey()}
      */
     @ReactMethod
-    public void keystoreInit(String keyName,
-                             int reauthenticationTimeoutInSecs,
-                             boolean invalidateKeyByNewBiometricEnrollment,
-                             Promise promise) {
+    public void keystoreInit(final String keyName,
+                             double reauthenticationTimeoutInSecs,
+                             final boolean invalidateKeyByNewBiometricEnrollment,
+                             final Promise promise) {
+        final int timeoutInSecs = (int) reauthenticationTimeoutInSecs;
+        runInBackground(new Runnable() {
+            @Override
+            public void run() {
+                keystoreInitInBackground(keyName, new KeyOptions(timeoutInSecs,
+                        invalidateKeyByNewBiometricEnrollment, CipherMode.CBC), promise);
+            }
+        }, promise, KEYSTORE_INIT_ERROR);
+    }
+
+    /**
+     * Same as {@link #keystoreInit} but takes the key configuration as an object, which can also
+     * select the cipher mode of the key. See {@link KeyOptions#fromMap}.
+     */
+    @ReactMethod
+    public void keystoreInitWithOptions(final String keyName,
+                                        final ReadableMap options,
+                                        final Promise promise) {
+        final KeyOptions keyOptions;
+        try {
+            keyOptions = KeyOptions.fromMap(options);
+        } catch (Exception e) {
+            promise.reject(KEYSTORE_INIT_ERROR, e);
+            return;
+        }
+        runInBackground(new Runnable() {
+            @Override
+            public void run() {
+                keystoreInitInBackground(keyName, keyOptions, promise);
+            }
+        }, promise, KEYSTORE_INIT_ERROR);
+    }
+
+    private void keystoreInitInBackground(String keyName, KeyOptions keyOptions, Promise promise) {
         try {
             if (!AndroidKeyStoreHelper.isDeviceSecure(getReactApplicationContext())) {
                 promise.reject(DEVICE_SECURE_ERROR, new Exception("Device is not secure"));
                 return;
             }
-            if (!AndroidKeyStoreHelper.keyExists(keyName)) {
-                Log.i(TAG, "keyStoreInit/key does not exist, creating it");
-                createKey(keyName, reauthenticationTimeoutInSecs, invalidateKeyByNewBiometricEnrollment);
+            // An unrecoverable key is same as a non-existent key, it is replaced.
+            if (AndroidKeyStoreHelper.getKeyState(keyName) != KeyState.VALID) {
+                Log.i(TAG, "keyStoreInit/key does not exist or is unusable, creating it");
+                createKey(keyName, keyOptions);
                 promise.resolve(true);
             } else {
                 Log.i(TAG, "keyStoreInit/key exists");
@@ -142,27 +364,236 @@ public class RNConfirmDeviceCredentialsModule extends ReactContextBaseJavaModule
     }
 
     @ReactMethod
-    public void deleteKey(String keyName, Promise promise) {
+    public void deleteKey(final String keyName, final Promise promise) {
+        runInBackground(new Runnable() {
+            @Override
+            public void run() {
+                deleteKeyInBackground(keyName, promise);
+            }
+        }, promise, DELETE_KEY_ERROR);
+    }
+
+    private void deleteKeyInBackground(String keyName, Promise promise) {
         try {
             if (AndroidKeyStoreHelper.keyExists(keyName)) {
                 promise.reject(DELETE_KEY_ERROR, "Key not found");
             }
-            boolean result = AndroidKeyStoreHelper.deleteKey(keyName);
+            boolean result = AndroidKeyStoreHelper.deleteKey(getReactApplicationContext(),
+                    keyName);
             promise.resolve(result);
         } catch (Exception e) {
             promise.reject(DELETE_KEY_ERROR, e);
         }
     }
 
+    /**
+     * Moves every secret of oldKeyName to newKeyName, a new key created with options, then
+     * deletes oldKeyName. Each batch of secrets is a separate task on the executor, so other
+     * calls are not held up by a long rotation. The user authenticates at most once for the
+     * whole rotation. An
+     * interrupted rotation carries on where it stopped when called again with the same keys,
+     * oldKeyName remains usable until it resolves. See
+     * {@link AndroidKeyStoreHelper#rotateKey}.
+     */
+    @ReactMethod
+    public void rotateKey(final String oldKeyName, final String newKeyName,
+                          final ReadableMap options, final Promise promise) {
+        final KeyOptions keyOptions;
+        try {
+            keyOptions = KeyOptions.fromMap(options);
+        } catch (Exception e) {
+            promise.reject(ROTATE_KEY_ERROR, e);
+            return;
+        }
+        runInBackground(new Runnable() {
+            @Override
+            public void run() {
+                rotateKeyInBackground(oldKeyName, newKeyName, keyOptions, promise);
+            }
+        }, promise, ROTATE_KEY_ERROR);
+    }
+
+    private void rotateKeyInBackground(final String oldKeyName,
+                                       final String newKeyName,
+                                       final KeyOptions keyOptions,
+                                       final Promise promise) {
+        try {
+            switch (AndroidKeyStoreHelper.rotateKey(getReactApplicationContext(), oldKeyName,
+                    newKeyName, keyOptions)) {
+                case DONE:
+                    promise.resolve(true);
+                    break;
+                case IN_PROGRESS:
+                    // Queue the next batch behind whatever else is waiting.
+                    runInBackground(new Runnable() {
+                        @Override
+                        public void run() {
+                            rotateKeyInBackground(oldKeyName, newKeyName, keyOptions, promise);
+                        }
+                    }, promise, ROTATE_KEY_ERROR);
+                    break;
+                default:
+                    promise.reject(ROTATE_KEY_ERROR, "Failed to rotate " + oldKeyName);
+                    break;
+            }
+        } catch (UserNotAuthenticatedException e) {
+            performAuthentication(oldKeyName, promise, e, ROTATE_KEY_ERROR, new Runnable() {
+                @Override
+                public void run() {
+                    rotateKeyInBackground(oldKeyName, newKeyName, keyOptions, promise);
+                }
+            });
+        } catch (UnrecoverableKeyException e) {
+            promise.reject(UNRECOVERABLE_PIN_ERROR, e);
+        } catch (AEADBadTagException e) {
+            promise.reject(SECRET_INTEGRITY_ERROR, e);
+        } catch (Exception e) {
+            promise.reject(ROTATE_KEY_ERROR, e);
+        }
+    }
+
+    /**
+     * Resolves to the names of the keys starting with prefix, or of all keys if prefix is null.
+     */
+    @ReactMethod
+    public void listKeys(final String prefix, final Promise promise) {
+        runInBackground(new Runnable() {
+            @Override
+            public void run() {
+                List<String> keyNames = AndroidKeyStoreHelper.listKeys(prefix);
+                if (keyNames == null) {
+                    promise.reject(LIST_KEYS_ERROR, "Failed to list keys");
+                    return;
+                }
+                promise.resolve(toWritableArray(keyNames));
+            }
+        }, promise, LIST_KEYS_ERROR);
+    }
+
+    /**
+     * Resolves to an object mapping each of keyNames to whether the key exists.
+     */
+    @ReactMethod
+    public void keysExist(ReadableArray keyNames, final Promise promise) {
+        final List<String> keyNameList = toStringList(keyNames);
+        runInBackground(new Runnable() {
+            @Override
+            public void run() {
+                Map<String, Boolean> keysExist = AndroidKeyStoreHelper.keysExist(keyNameList);
+                if (keysExist == null) {
+                    promise.reject(LIST_KEYS_ERROR, "Failed to list keys");
+                    return;
+                }
+                WritableMap result = Arguments.createMap();
+                for (Map.Entry<String, Boolean> entry : keysExist.entrySet()) {
+                    result.putBoolean(entry.getKey(), entry.getValue());
+                }
+                promise.resolve(result);
+            }
+        }, promise, LIST_KEYS_ERROR);
+    }
+
+    /**
+     * Deletes the keys named in keyNames along with the secrets stored under them. Resolves to
+     * the names of the keys which existed and were deleted.
+     */
+    @ReactMethod
+    public void deleteKeys(ReadableArray keyNames, final Promise promise) {
+        final List<String> keyNameList = toStringList(keyNames);
+        runInBackground(new Runnable() {
+            @Override
+            public void run() {
+                resolveDeletedKeys(AndroidKeyStoreHelper.deleteKeys(
+                        getReactApplicationContext(), keyNameList), promise);
+            }
+        }, promise, DELETE_KEY_ERROR);
+    }
+
+    /**
+     * Same as {@link #deleteKeys} with every key whose name starts with prefix. Rejects an empty
+     * prefix, use {@link #listKeys} with null and {@link #deleteKeys} to really delete every key.
+     */
+    @ReactMethod
+    public void deleteKeysWithPrefix(final String prefix, final Promise promise) {
+        if (prefix == null || prefix.isEmpty()) {
+            promise.reject(DELETE_KEY_ERROR, "A prefix is required");
+            return;
+        }
+        runInBackground(new Runnable() {
+            @Override
+            public void run() {
+                resolveDeletedKeys(AndroidKeyStoreHelper.deleteKeysWithPrefix(
+                        getReactApplicationContext(), prefix), promise);
+            }
+        }, promise, DELETE_KEY_ERROR);
+    }
+
+    private static void resolveDeletedKeys(List<String> deletedKeyNames, Promise promise) {
+        if (deletedKeyNames == null) {
+            promise.reject(DELETE_KEY_ERROR, "Failed to delete some of the keys");
+            return;
+        }
+        promise.resolve(toWritableArray(deletedKeyNames));
+    }
+
+    /**
+     * Starts watching whether the device is secure and whether keyNames are still usable, and
+     * resolves to their current state. Every later change is sent as a securityStateChanged
+     * event with the same shape, so JS doesn't need to poll {@link #isDeviceSecure} or
+     * {@link #keyExists}. Calling it again replaces the keys watched.
+     */
+    @ReactMethod
+    public void observeSecurityState(ReadableArray keyNames, final Promise promise) {
+        securityStateMonitor.start(toStringList(keyNames));
+        runInBackground(new Runnable() {
+            @Override
+            public void run() {
+                promise.resolve(toWritableMap(securityStateMonitor.resetBaseline()));
+            }
+        }, promise, SECURITY_STATE_ERROR);
+    }
+
+    @ReactMethod
+    public void stopObservingSecurityState(Promise promise) {
+        securityStateMonitor.stop();
+        promise.resolve(true);
+    }
+
+    private static WritableMap toWritableMap(SecurityStateMonitor.State state) {
+        WritableMap keyStates = Arguments.createMap();
+        for (Map.Entry<String, KeyState> entry : state.keyStates.entrySet()) {
+            keyStates.putString(entry.getKey(), entry.getValue().jsName);
+        }
+        WritableMap map = Arguments.createMap();
+        map.putBoolean("isDeviceSecure", state.deviceSecure);
+        map.putMap("keys", keyStates);
+        return map;
+    }
+
+    private static WritableArray toWritableArray(List<String> list) {
+        WritableArray array = Arguments.createArray();
+        for (String value : list) {
+            array.pushString(value);
+        }
+        return array;
+    }
+
+    private static List<String> toStringList(ReadableArray array) {
+        List<String> list = new ArrayList<>(array.size());
+        for (int i = 0; i < array.size(); i++) {
+            list.add(array.getString(i));
+        }
+        return list;
+    }
+
     /**
      * Creates a symmetric key in the Android Key Store which can only be used after
      * the user has authenticated with device credentials within the last X seconds.
      */
-    private void createKey(String keyName, int reauthenticationTimeoutInSecs,
-                           boolean invalidateKeyByNewBiometricEnrollment) {
+    private void createKey(String keyName, KeyOptions keyOptions) {
         try {
-            boolean result = AndroidKeyStoreHelper.createKey(keyName,
-                    reauthenticationTimeoutInSecs, invalidateKeyByNewBiometricEnrollment);
+            boolean result = AndroidKeyStoreHelper.createKey(getReactApplicationContext(),
+                    keyName, keyOptions);
             Log.i(TAG, "createKey/key creation result: " + result);
         } catch (Exception e) {
             throw new RuntimeException("Failed to create a symmetric key", e);
@@ -170,95 +601,553 @@ public class RNConfirmDeviceCredentialsModule extends ReactContextBaseJavaModule
     }
 
     /**
-     * storePin always requires user to confirm device credentials, irrespective of when they
-     * last confirmed them.
+     * storePin requires user to confirm device credentials, unless they confirmed them through
+     * this module within the reauthentication timeout of the key.
      * @param keyName This key must have been created before with {@see #createKey}
      * @param pinValue An arbitrary string you want to store as the PIN
      * @param promise promise which resolves/rejects depending on whether pin storage succeeded or not
      */
     @ReactMethod
     public void storePin(final String keyName, final String pinValue, final Promise promise) {
-        Runnable storePinRunnable = new Runnable() {
+        storeSecretsWithAuthentication(keyName,
+                Collections.singletonMap(AndroidKeyStoreHelper.DEFAULT_SLOT, pinValue),
+                STORE_PIN_ERROR, promise);
+    }
+
+    @ReactMethod
+    public void retrievePin(final String keyName, final Promise promise) {
+        retrieveSecret(keyName, AndroidKeyStoreHelper.DEFAULT_SLOT, RETRIEVE_PIN_ERROR, promise);
+    }
+
+    /**
+     * Same as {@link #storePin} but stores value in the named slot, so that several secrets can be
+     * kept under the same key.
+     */
+    @ReactMethod
+    public void storeSecret(final String keyName, final String slot, final String value,
+                            final Promise promise) {
+        storeSecretsWithAuthentication(keyName, Collections.singletonMap(slot, value),
+                STORE_SECRET_ERROR, promise);
+    }
+
+    /**
+     * Stores every slot/value pair of secrets under keyName, asking the user to confirm their
+     * device credentials only once.
+     */
+    @ReactMethod
+    public void storeSecrets(final String keyName, final ReadableMap secrets, final Promise promise) {
+        Map<String, String> slotsToValues = new HashMap<>();
+        ReadableMapKeySetIterator iterator = secrets.keySetIterator();
+        while (iterator.hasNextKey()) {
+            String slot = iterator.nextKey();
+            slotsToValues.put(slot, secrets.getString(slot));
+        }
+        storeSecretsWithAuthentication(keyName, slotsToValues, STORE_SECRET_ERROR, promise);
+    }
+
+    @ReactMethod
+    public void retrieveSecret(final String keyName, final String slot, final Promise promise) {
+        retrieveSecret(keyName, slot, RETRIEVE_SECRET_ERROR, promise);
+    }
+
+    /**
+     * Resolves to a map from each of slots to its secret, null for the slots that are empty.
+     * The user is asked to confirm their device credentials at most once.
+     */
+    @ReactMethod
+    public void retrieveSecrets(final String keyName, final ReadableArray slots,
+                                final Promise promise) {
+        final List<String> slotList = toStringList(slots);
+        runInBackground(new Runnable() {
+            @Override
+            public void run() {
+                retrieveSecretsInBackground(keyName, slotList, promise);
+            }
+        }, promise, RETRIEVE_SECRET_ERROR);
+    }
+
+    /**
+     * Resolves to whether a secret is stored in slot, or the PIN if slot is null, without
+     * decrypting it, so it never needs the user to authenticate.
+     */
+    @ReactMethod
+    public void hasSecret(final String keyName, @Nullable final String slot,
+                          final Promise promise) {
+        runInBackground(new Runnable() {
+            @Override
+            public void run() {
+                describeSecretInBackground(keyName, slot, false, promise);
+            }
+        }, promise, SECRET_INFO_ERROR);
+    }
+
+    /**
+     * Resolves to the cipher mode, whether envelope encryption is used, the creation and update
+     * times in milliseconds since the epoch, 0 when not known, and the encrypted size of the
+     * secret in slot, or the PIN if slot is null, or to null if nothing is stored there. Like
+     * {@link #hasSecret}, it never needs the user to authenticate.
+     */
+    @ReactMethod
+    public void getSecretInfo(final String keyName, @Nullable final String slot,
+                              final Promise promise) {
+        runInBackground(new Runnable() {
+            @Override
+            public void run() {
+                describeSecretInBackground(keyName, slot, true, promise);
+            }
+        }, promise, SECRET_INFO_ERROR);
+    }
+
+    private void describeSecretInBackground(String keyName, @Nullable String slot,
+                                            boolean details, Promise promise) {
+        String resolvedSlot = slot == null ? AndroidKeyStoreHelper.DEFAULT_SLOT : slot;
+        Map<String, SecretInfo> infos = AndroidKeyStoreHelper.getSecretInfos(
+                getReactApplicationContext(), keyName, Collections.singletonList(resolvedSlot));
+        if (infos == null) {
+            promise.reject(SECRET_INFO_ERROR, "Failed to read the secrets of " + keyName);
+            return;
+        }
+        SecretInfo info = infos.get(resolvedSlot);
+        if (!details) {
+            promise.resolve(info != null);
+            return;
+        }
+        if (info == null) {
+            promise.resolve(null);
+            return;
+        }
+        WritableMap map = Arguments.createMap();
+        map.putString("cipherMode", info.cipherMode.name());
+        map.putBoolean("envelope", info.envelope);
+        map.putDouble("createdAt", info.createdAt);
+        map.putDouble("updatedAt", info.updatedAt);
+        map.putInt("encryptedSize", info.encryptedSize);
+        promise.resolve(map);
+    }
+
+    /**
+     * Resolves to how many milliseconds the authentication window of keyName stays open, 0 if it
+     * is known to be closed and -1 if it is not known, e.g. before the user authenticated through
+     * this module or after the app was in the background.
+     */
+    @ReactMethod
+    public void getAuthSessionRemainingMs(final String keyName, final Promise promise) {
+        runInBackground(new Runnable() {
+            @Override
+            public void run() {
+                promise.resolve((double) AndroidKeyStoreHelper.getAuthSessionRemainingMillis(
+                        keyName));
+            }
+        }, promise, AUTH_SESSION_ERROR);
+    }
+
+    /**
+     * Opts into keeping decrypted secrets in memory for up to ttlInSecs, so that repeated reads
+     * don't go through the keystore. Entries never outlive the authentication window of their
+     * key and are dropped when the app goes to the background. 0 disables the cache.
+     */
+    @ReactMethod
+    public void setSecretCacheTtl(double ttlInSecs, Promise promise) {
+        AndroidKeyStoreHelper.setSecretCacheTtl((int) ttlInSecs);
+        promise.resolve(true);
+    }
+
+    /**
+     * Encrypts the file at srcPath into dstPath with keyName, streaming it so that files of any
+     * size can be protected. Progress is reported through fileCryptoProgress events.
+     */
+    @ReactMethod
+    public void encryptFile(final String keyName, final String srcPath, final String dstPath,
+                            final Promise promise) {
+        runInBackground(new Runnable() {
+            @Override
+            public void run() {
+                encryptFileInBackground(keyName, srcPath, dstPath, promise);
+            }
+        }, promise, ENCRYPT_FILE_ERROR);
+    }
+
+    private void encryptFileInBackground(final String keyName,
+                                         final String srcPath,
+                                         final String dstPath,
+                                         final Promise promise) {
+        try {
+            promise.resolve(AndroidKeyStoreHelper.encryptFile(keyName, new File(srcPath),
+                    new File(dstPath), progressListener(srcPath, dstPath)));
+        } catch (UserNotAuthenticatedException e) {
+            performAuthentication(keyName, promise, e, ENCRYPT_FILE_ERROR, new Runnable() {
+                @Override
+                public void run() {
+                    encryptFileInBackground(keyName, srcPath, dstPath, promise);
+                }
+            });
+        } catch (Exception e) {
+            promise.reject(ENCRYPT_FILE_ERROR, e);
+        }
+    }
+
+    /**
+     * Decrypts the file at srcPath, written by {@link #encryptFile}, into dstPath.
+     */
+    @ReactMethod
+    public void decryptFile(final String keyName, final String srcPath, final String dstPath,
+                            final Promise promise) {
+        runInBackground(new Runnable() {
+            @Override
+            public void run() {
+                decryptFileInBackground(keyName, srcPath, dstPath, promise);
+            }
+        }, promise, DECRYPT_FILE_ERROR);
+    }
+
+    private void decryptFileInBackground(final String keyName,
+                                         final String srcPath,
+                                         final String dstPath,
+                                         final Promise promise) {
+        try {
+            promise.resolve(AndroidKeyStoreHelper.decryptFile(keyName, new File(srcPath),
+                    new File(dstPath), progressListener(srcPath, dstPath)));
+        } catch (UserNotAuthenticatedException e) {
+            performAuthentication(keyName, promise, e, DECRYPT_FILE_ERROR, new Runnable() {
+                @Override
+                public void run() {
+                    decryptFileInBackground(keyName, srcPath, dstPath, promise);
+                }
+            });
+        } catch (UnrecoverableKeyException e) {
+            promise.reject(UNRECOVERABLE_PIN_ERROR, e);
+        } catch (AEADBadTagException e) {
+            promise.reject(SECRET_INTEGRITY_ERROR, e);
+        } catch (Exception e) {
+            promise.reject(DECRYPT_FILE_ERROR, e);
+        }
+    }
+
+    private FileCipher.ProgressListener progressListener(final String srcPath,
+                                                         final String dstPath) {
+        return new FileCipher.ProgressListener() {
+            @Override
+            public void onProgress(long processedBytes, long totalBytes) {
+                WritableMap params = Arguments.createMap();
+                params.putString("srcPath", srcPath);
+                params.putString("dstPath", dstPath);
+                params.putDouble("processedBytes", processedBytes);
+                params.putDouble("totalBytes", totalBytes);
+                sendEvent(FILE_CRYPTO_PROGRESS_EVENT, params);
+            }
+        };
+    }
+
+    private void sendEvent(String eventName, WritableMap params) {
+        ReactApplicationContext reactContext = getReactApplicationContext();
+        if (!reactContext.hasActiveCatalystInstance()) {
+            return;
+        }
+        reactContext.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+                .emit(eventName, params);
+    }
+
+    /**
+     * Required by NativeEventEmitter, events are sent regardless of listeners.
+     */
+    @ReactMethod
+    public void addListener(String eventName) {
+        // Do nothing
+    }
+
+    @ReactMethod
+    public void removeListeners(double count) {
+        // Do nothing
+    }
+
+    /**
+     * Resolves to the number of calls, total and maximum duration and latency histogram of each
+     * phase of the keystore, cipher, file and authentication work done since the app started or
+     * the last {@link #resetMetrics}. Each histogram has one more bucket than bucketUpperBoundsMs,
+     * the last one counts everything above the largest bound.
+     */
+    @ReactMethod
+    public void getMetrics(Promise promise) {
+        WritableArray bucketUpperBounds = Arguments.createArray();
+        for (int i = 0; i < Metrics.BUCKET_UPPER_BOUNDS_MICROS.length - 1; i++) {
+            bucketUpperBounds.pushDouble(Metrics.BUCKET_UPPER_BOUNDS_MICROS[i] / 1000.0);
+        }
+        WritableMap phases = Arguments.createMap();
+        for (Metrics.Phase phase : Metrics.Phase.values()) {
+            WritableMap phaseMetrics = Arguments.createMap();
+            phaseMetrics.putDouble("count", Metrics.count(phase));
+            phaseMetrics.putDouble("totalMs", Metrics.totalNanos(phase) / 1e6);
+            phaseMetrics.putDouble("maxMs", Metrics.maxNanos(phase) / 1e6);
+            WritableArray buckets = Arguments.createArray();
+            for (int i = 0; i < Metrics.BUCKET_UPPER_BOUNDS_MICROS.length; i++) {
+                buckets.pushDouble(Metrics.bucketCount(phase, i));
+            }
+            phaseMetrics.putArray("buckets", buckets);
+            phases.putMap(phase.metricName, phaseMetrics);
+        }
+        WritableMap result = Arguments.createMap();
+        result.putArray("bucketUpperBoundsMs", bucketUpperBounds);
+        result.putMap("phases", phases);
+        promise.resolve(result);
+    }
+
+    @ReactMethod
+    public void resetMetrics(Promise promise) {
+        Metrics.reset();
+        promise.resolve(true);
+    }
+
+    @ReactMethod
+    public void deleteSecret(final String keyName, final String slot, final Promise promise) {
+        runInBackground(new Runnable() {
             @Override
             public void run() {
                 try {
-                    boolean result = AndroidKeyStoreHelper.storePin(
+                    promise.resolve(AndroidKeyStoreHelper.deleteSecret(
+                            getReactApplicationContext(), keyName, slot));
+                } catch (Exception e) {
+                    promise.reject(DELETE_SECRET_ERROR, e);
+                }
+            }
+        }, promise, DELETE_SECRET_ERROR);
+    }
+
+    /**
+     * Prompts the user before storing, unless their last authentication is known to be recent
+     * enough for keyName.
+     */
+    private void storeSecretsWithAuthentication(final String keyName,
+                                                final Map<String, String> slotsToValues,
+                                                final String errorCode,
+                                                final Promise promise) {
+        final Runnable storeSecretRunnable = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    boolean result = AndroidKeyStoreHelper.storeSecrets(
                             getReactApplicationContext(),
                             keyName,
-                            pinValue);
+                            slotsToValues);
                     promise.resolve(result);
                 } catch (final UserNotAuthenticatedException e) {
                     promise.reject(USER_NOT_AUTHENTICATED_ERROR, e);
                 } catch (Exception e) {
-                    promise.reject(STORE_PIN_ERROR, e);
+                    promise.reject(errorCode, e);
                 }
             }
         };
-        performAuthentication(promise,
-                new UserNotAuthenticatedException("User failed to authenticate"),
-                AUTH_FOR_ENCRYPT_REQUEST_CODE,
-                storePinRunnable);
+        runInBackground(new Runnable() {
+            @Override
+            public void run() {
+                if (AndroidKeyStoreHelper.getAuthSessionRemainingMillis(keyName) > 0) {
+                    try {
+                        promise.resolve(AndroidKeyStoreHelper.storeSecrets(
+                                getReactApplicationContext(), keyName, slotsToValues));
+                        return;
+                    } catch (UserNotAuthenticatedException e) {
+                        Log.d(TAG, "storeSecrets/authentication window closed early");
+                    } catch (Exception e) {
+                        promise.reject(errorCode, e);
+                        return;
+                    }
+                }
+                performAuthentication(keyName,
+                        promise,
+                        new UserNotAuthenticatedException("User failed to authenticate"),
+                        errorCode,
+                        storeSecretRunnable);
+            }
+        }, promise, errorCode);
     }
 
-    @ReactMethod
-    public void retrievePin(final String keyName, final Promise promise) {
+    private void retrieveSecret(final String keyName, final String slot, final String errorCode,
+                                final Promise promise) {
+        runInBackground(new Runnable() {
+            @Override
+            public void run() {
+                retrieveSecretInBackground(keyName, slot, errorCode, promise);
+            }
+        }, promise, errorCode);
+    }
+
+    private void retrieveSecretInBackground(final String keyName,
+                                            final String slot,
+                                            final String errorCode,
+                                            final Promise promise) {
         try {
-            String result = AndroidKeyStoreHelper.retrievePin(getReactApplicationContext(),
-                    keyName);
+            String result = AndroidKeyStoreHelper.retrieveSecret(getReactApplicationContext(),
+                    keyName, slot);
             promise.resolve(result);
         } catch (UserNotAuthenticatedException e) {
             final Runnable retryRunnable = new Runnable() {
                 @Override
                 public void run() {
-                    retrievePin(keyName, promise);
+                    retrieveSecretInBackground(keyName, slot, errorCode, promise);
                 }
             };
-            performAuthentication(promise, e, AUTH_FOR_DECRYPT_REQUEST_CODE, retryRunnable);
+            performAuthentication(keyName, promise, e, errorCode, retryRunnable);
         } catch (UnrecoverableKeyException e) {
             // The user removed the screen lock. The encryption key is unrecoverable, even if,
             // user puts the screen lock back on.
             promise.reject(UNRECOVERABLE_PIN_ERROR, e);
+        } catch (AEADBadTagException e) {
+            promise.reject(SECRET_INTEGRITY_ERROR, e);
         } catch (Exception e) {
-            promise.reject(RETRIEVE_PIN_ERROR, e);
+            promise.reject(errorCode, e);
         }
     }
 
-    private void performAuthentication(final Promise promise,
+    private void retrieveSecretsInBackground(final String keyName,
+                                             final List<String> slots,
+                                             final Promise promise) {
+        try {
+            Map<String, String> secrets = AndroidKeyStoreHelper.retrieveSecrets(
+                    getReactApplicationContext(), keyName, slots);
+            if (secrets == null) {
+                promise.reject(RETRIEVE_SECRET_ERROR, "Failed to access the stored secrets");
+                return;
+            }
+            WritableMap result = Arguments.createMap();
+            for (Map.Entry<String, String> entry : secrets.entrySet()) {
+                result.putString(entry.getKey(), entry.getValue());
+            }
+            promise.resolve(result);
+        } catch (UserNotAuthenticatedException e) {
+            final Runnable retryRunnable = new Runnable() {
+                @Override
+                public void run() {
+                    retrieveSecretsInBackground(keyName, slots, promise);
+                }
+            };
+            performAuthentication(keyName, promise, e, RETRIEVE_SECRET_ERROR, retryRunnable);
+        } catch (UnrecoverableKeyException e) {
+            promise.reject(UNRECOVERABLE_PIN_ERROR, e);
+        } catch (AEADBadTagException e) {
+            promise.reject(SECRET_INTEGRITY_ERROR, e);
+        } catch (Exception e) {
+            promise.reject(RETRIEVE_SECRET_ERROR, e);
+        }
+    }
+
+    /**
+     * Asks the user to confirm their device credentials and, once they do, runs retryRunnable on
+     * the background executor. While an authentication for keyName is in flight, later calls join
+     * it instead of showing another lock screen, and all of them are resumed or rejected together
+     * when it completes. The lock screen is started from the UI thread.
+     */
+    private void performAuthentication(final String keyName,
+                                       final Promise promise,
                                        final UserNotAuthenticatedException e,
-                                       final int requestCode,
+                                       final String errorCode,
                                        final Runnable retryRunnable) {
-        ActivityEventListener activityEventListener = new ActivityEventListener() {
-            @Override
-            public void onActivityResult(Activity activity,
-                                         int requestcode,
-                                         int resultCode,
-                                         Intent intent) {
-                if (requestcode == requestCode) {
-                    if (resultCode == Activity.RESULT_OK) {
-                        // Retry since now the user is authenticated.
-                        retryRunnable.run();
-                    } else {
-                        // User decided to reject authentication.
-                        promise.reject(USER_NOT_AUTHENTICATED_ERROR, e);
+        PendingAuthentication pendingAuthentication =
+                new PendingAuthentication(promise, e, errorCode, retryRunnable);
+        synchronized (pendingAuthentications) {
+            List<PendingAuthentication> waiting = pendingAuthentications.get(keyName);
+            if (waiting != null) {
+                Log.d(TAG, "performAuthentication/joining authentication in flight");
+                waiting.add(pendingAuthentication);
+                return;
+            }
+            waiting = new ArrayList<>();
+            waiting.add(pendingAuthentication);
+            pendingAuthentications.put(keyName, waiting);
+        }
+
+        final int requestCode = activityResultDispatcher.register(
+                new ActivityResultDispatcher.Callback() {
+                    @Override
+                    public void onActivityResult(int resultCode) {
+                        completeAuthentication(keyName, resultCode == Activity.RESULT_OK);
                     }
-                    getReactApplicationContext().removeActivityEventListener(this);
+                });
+        if (requestCode < 0) {
+            completeAuthentication(keyName, false);
+            return;
+        }
+        getReactApplicationContext().runOnUiQueueThread(new Runnable() {
+            @Override
+            public void run() {
+                Activity currentActivity = getCurrentActivity();
+                boolean started;
+                try {
+                    // Cannot authenticate without an activity or if the device is not secure.
+                    started = currentActivity != null
+                            && AndroidKeyStoreHelper.authenticateUser(currentActivity,
+                            requestCode);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "performAuthentication/Failed to show the lock screen", e);
+                    activityResultDispatcher.cancel(requestCode);
+                    failAuthentication(keyName, e);
+                    return;
+                }
+                if (!started) {
+                    activityResultDispatcher.cancel(requestCode);
+                    completeAuthentication(keyName, false);
                 }
             }
+        });
+    }
 
-            @Override
-            public void onNewIntent(Intent intent) {
-                // Do nothing
+    private void completeAuthentication(String keyName, boolean authenticated) {
+        List<PendingAuthentication> waiting = removePendingAuthentications(keyName);
+        if (waiting == null) {
+            return;
+        }
+        Metrics.record(Metrics.Phase.AUTHENTICATION,
+                System.nanoTime() - waiting.get(0).startNanos);
+        if (authenticated) {
+            AndroidKeyStoreHelper.onUserAuthenticated();
+        }
+        for (PendingAuthentication pendingAuthentication : waiting) {
+            if (authenticated) {
+                // Retry since now the user is authenticated.
+                runInBackground(pendingAuthentication.retryRunnable,
+                        pendingAuthentication.promise, pendingAuthentication.errorCode);
+            } else {
+                // User decided to reject authentication.
+                pendingAuthentication.promise.reject(USER_NOT_AUTHENTICATED_ERROR,
+                        pendingAuthentication.exception);
             }
-        };
-        getReactApplicationContext().addActivityEventListener(activityEventListener);
-        Activity currentActivity = getCurrentActivity();
-        if (currentActivity == null) {
-            // Current activity is null, cannot authenticate.
-            promise.reject(USER_NOT_AUTHENTICATED_ERROR, e);
-        } else {
-            AndroidKeyStoreHelper.authenticateUser(
-                    currentActivity,
-                    requestCode);
+        }
+    }
+
+    /**
+     * Rejects every call waiting on the authentication for keyName with its own error code, as
+     * the lock screen could not be shown.
+     */
+    private void failAuthentication(String keyName, RuntimeException e) {
+        List<PendingAuthentication> waiting = removePendingAuthentications(keyName);
+        if (waiting == null) {
+            return;
+        }
+        for (PendingAuthentication pendingAuthentication : waiting) {
+            pendingAuthentication.promise.reject(pendingAuthentication.errorCode, e);
+        }
+    }
+
+    @Nullable
+    private List<PendingAuthentication> removePendingAuthentications(String keyName) {
+        synchronized (pendingAuthentications) {
+            return pendingAuthentications.remove(keyName);
+        }
+    }
+
+    private static class PendingAuthentication {
+        final Promise promise;
+        final UserNotAuthenticatedException exception;
+        final String errorCode;
+        final Runnable retryRunnable;
+        final long startNanos = System.nanoTime();
+
+        PendingAuthentication(Promise promise,
+                              UserNotAuthenticatedException exception,
+                              String errorCode,
+                              Runnable retryRunnable) {
+            this.promise = promise;
+            this.exception = exception;
+            this.errorCode = errorCode;
+            this.retryRunnable = retryRunnable;
         }
     }
 }
@@ -12,9 +12,25 @@ import com.facebook.react.uimanager.ViewManager;
 import com.facebook.react.bridge.JavaScriptModule;
 
 public class RNConfirmDeviceCredentialsPackage implements ReactPackage {
+    private final boolean prewarm;
+
+    public RNConfirmDeviceCredentialsPackage() {
+      this(false);
+    }
+
+    /**
+     * @param prewarm whether to warm up the keystore and cipher providers in the background as
+     *                soon as the module is created, so the first operation after a cold start is
+     *                faster
+     */
+    public RNConfirmDeviceCredentialsPackage(boolean prewarm) {
+      this.prewarm = prewarm;
+    }
+
     @Override
     public List<NativeModule> createNativeModules(ReactApplicationContext reactContext) {
-      return Arrays.<NativeModule>asList(new RNConfirmDeviceCredentialsModule(reactContext));
+      return Arrays.<NativeModule>asList(
+          new RNConfirmDeviceCredentialsModule(reactContext, prewarm));
     }
 
     // Deprecated from RN 0.47
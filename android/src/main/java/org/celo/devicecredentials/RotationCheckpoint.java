@@ -0,0 +1,160 @@
+package org.celo.devicecredentials;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The progress of moving the secrets of one key to another, see
+ * {@link AndroidKeyStoreHelper#rotateKey}. It holds the key being rotated to with its options
+ * and, for every slot copied so far, the IV of the record it was copied from. IVs are random, so
+ * a slot whose record was replaced after being copied no longer matches and is copied again.
+ * Once every slot is copied the rotation is switched over, from then on only the old key is left
+ * to delete.
+ *
+ * The file starts with {@link #MAGIC} and {@link #VERSION}, followed by the new key's name and
+ * options, whether the rotation was switched over, the number of copied slots and then each slot
+ * name and IV. Version 1 files have no switched over flag.
+ */
+class RotationCheckpoint {
+    private static final String TAG = "RotationCheckpoint";
+    private static final String CHECKPOINT_FILENAME_PREFIX = "rotation_";
+    private static final int MAGIC = 0x52524f54;
+    private static final byte VERSION = 2;
+
+    final String newKeyName;
+    final KeyOptions options;
+    private final Map<String, byte[]> copiedFrom;
+    private boolean switchedOver;
+
+    RotationCheckpoint(String newKeyName, KeyOptions options) {
+        this(newKeyName, options, false, new HashMap<String, byte[]>());
+    }
+
+    private RotationCheckpoint(String newKeyName, KeyOptions options, boolean switchedOver,
+                               Map<String, byte[]> copiedFrom) {
+        this.newKeyName = newKeyName;
+        this.options = options;
+        this.switchedOver = switchedOver;
+        this.copiedFrom = copiedFrom;
+    }
+
+    /**
+     * Loads the checkpoint of the rotation of oldKeyName, returns null if no rotation is in
+     * progress.
+     */
+    @Nullable
+    static RotationCheckpoint load(FileStore fileStore, String oldKeyName) throws IOException {
+        byte[] bytes;
+        try {
+            bytes = fileStore.readFully(fileNameFor(oldKeyName));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a rotation checkpoint");
+        }
+        byte version = in.readByte();
+        if (version > VERSION) {
+            throw new IOException("Unsupported rotation checkpoint version " + version);
+        }
+        String newKeyName = in.readUTF();
+        int reauthenticationTimeoutInSecs = in.readInt();
+        boolean invalidateKeyByNewBiometricEnrollment = in.readBoolean();
+        CipherMode cipherMode;
+        try {
+            cipherMode = CipherMode.fromId(in.readByte());
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage());
+        }
+        boolean envelope = in.readBoolean();
+        boolean switchedOver = version >= 2 && in.readBoolean();
+        int count = in.readInt();
+        Map<String, byte[]> copiedFrom = new HashMap<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            String slot = in.readUTF();
+            byte[] iv = new byte[in.readInt()];
+            in.readFully(iv);
+            copiedFrom.put(slot, iv);
+        }
+        return new RotationCheckpoint(newKeyName, new KeyOptions(reauthenticationTimeoutInSecs,
+                invalidateKeyByNewBiometricEnrollment, cipherMode, envelope), switchedOver,
+                copiedFrom);
+    }
+
+    boolean save(FileStore fileStore, String oldKeyName) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeUTF(newKeyName);
+            out.writeInt(options.reauthenticationTimeoutInSecs);
+            out.writeBoolean(options.invalidateKeyByNewBiometricEnrollment);
+            out.writeByte(options.cipherMode.id);
+            out.writeBoolean(options.envelope);
+            out.writeBoolean(switchedOver);
+            out.writeInt(copiedFrom.size());
+            for (Map.Entry<String, byte[]> entry : copiedFrom.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().length);
+                out.write(entry.getValue());
+            }
+            out.flush();
+            fileStore.replace(fileNameFor(oldKeyName), bytes.toByteArray());
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to save the rotation checkpoint of " + oldKeyName, e);
+            return false;
+        }
+    }
+
+    static boolean delete(FileStore fileStore, String oldKeyName) {
+        return fileStore.delete(fileNameFor(oldKeyName));
+    }
+
+    boolean isCopied(String slot, SecretVault.Record source) {
+        byte[] iv = copiedFrom.get(slot);
+        return iv != null && Arrays.equals(iv, source.iv);
+    }
+
+    void markCopied(String slot, SecretVault.Record source) {
+        copiedFrom.put(slot, source.iv);
+    }
+
+    Set<String> copiedSlots() {
+        return new HashSet<>(copiedFrom.keySet());
+    }
+
+    /**
+     * Forgets every copy, e.g. because the new key had to be created again.
+     */
+    void clearCopied() {
+        copiedFrom.clear();
+    }
+
+    boolean isSwitchedOver() {
+        return switchedOver;
+    }
+
+    void setSwitchedOver() {
+        switchedOver = true;
+    }
+
+    private static String fileNameFor(String oldKeyName) {
+        return FileStore.fileNameFor(CHECKPOINT_FILENAME_PREFIX, oldKeyName);
+    }
+}
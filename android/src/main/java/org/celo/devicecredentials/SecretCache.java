@@ -0,0 +1,115 @@
+package org.celo.devicecredentials;
+
+import android.support.annotation.Nullable;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of decrypted secrets so that repeated reads while the key's authentication
+ * window is open don't go through the keystore again. Values are kept as byte arrays which are
+ * zeroed as soon as they are evicted.
+ */
+class SecretCache {
+    private static final int MAX_ENTRIES = 32;
+
+    private final Map<String, CachedSecret> entries =
+            new LinkedHashMap<String, CachedSecret>(MAX_ENTRIES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CachedSecret> eldest) {
+                    if (size() > MAX_ENTRIES) {
+                        eldest.getValue().clear();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+
+    /**
+     * Takes ownership of value, callers must not modify or clear it afterwards.
+     */
+    synchronized void put(String keyName, String slot, byte[] value, long ttlMillis) {
+        CachedSecret previous = entries.put(cacheKey(keyName, slot),
+                new CachedSecret(value, Clock.get().elapsedRealtime() + ttlMillis));
+        if (previous != null) {
+            previous.clear();
+        }
+    }
+
+    @Nullable
+    synchronized String get(String keyName, String slot) {
+        CachedSecret entry = getUnexpired(keyName, slot);
+        return entry == null ? null : new String(entry.value, Charset.defaultCharset());
+    }
+
+    /**
+     * @return a copy of the cached value, which the caller should clear once done with it
+     */
+    @Nullable
+    synchronized byte[] getBytes(String keyName, String slot) {
+        CachedSecret entry = getUnexpired(keyName, slot);
+        return entry == null ? null : entry.value.clone();
+    }
+
+    @Nullable
+    private CachedSecret getUnexpired(String keyName, String slot) {
+        String cacheKey = cacheKey(keyName, slot);
+        CachedSecret entry = entries.get(cacheKey);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expiresAt <= Clock.get().elapsedRealtime()) {
+            entries.remove(cacheKey);
+            entry.clear();
+            return null;
+        }
+        return entry;
+    }
+
+    synchronized void invalidate(String keyName, String slot) {
+        CachedSecret entry = entries.remove(cacheKey(keyName, slot));
+        if (entry != null) {
+            entry.clear();
+        }
+    }
+
+    synchronized void invalidateKey(String keyName) {
+        String prefix = cacheKey(keyName, "");
+        Iterator<Map.Entry<String, CachedSecret>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, CachedSecret> entry = iterator.next();
+            if (entry.getKey().startsWith(prefix)) {
+                entry.getValue().clear();
+                iterator.remove();
+            }
+        }
+    }
+
+    synchronized void clear() {
+        for (CachedSecret entry : entries.values()) {
+            entry.clear();
+        }
+        entries.clear();
+    }
+
+    private static String cacheKey(String keyName, String slot) {
+        return keyName + '\u0000' + slot;
+    }
+
+    private static class CachedSecret {
+        final byte[] value;
+        final long expiresAt;
+
+        CachedSecret(byte[] value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        void clear() {
+            Arrays.fill(value, (byte) 0);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package org.celo.devicecredentials;
+
+/**
+ * What can be told about a stored secret from its record alone, without the key.
+ */
+class SecretInfo {
+    final CipherMode cipherMode;
+    /**
+     * Whether the secret is encrypted with the vault's data key, see {@link SecretVault}.
+     */
+    final boolean envelope;
+    /**
+     * In milliseconds since the epoch, {@link SecretVault#UNKNOWN_TIME} if not known.
+     */
+    final long createdAt;
+    final long updatedAt;
+    /**
+     * The size of the cipher text, which is the secret's size rounded up to the block size in CBC
+     * mode and the secret's size plus the authentication tag in GCM mode.
+     */
+    final int encryptedSize;
+
+    SecretInfo(SecretVault.Record record) {
+        this(record.mode, record.usesDataKey, record.createdAt, record.updatedAt,
+                record.cipherText.length);
+    }
+
+    SecretInfo(CipherMode cipherMode, boolean envelope, long createdAt, long updatedAt,
+               int encryptedSize) {
+        this.cipherMode = cipherMode;
+        this.envelope = envelope;
+        this.createdAt = createdAt;
+        this.updatedAt = updatedAt;
+        this.encryptedSize = encryptedSize;
+    }
+}
@@ -0,0 +1,303 @@
+package org.celo.devicecredentials;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The encrypted secrets stored under a single keystore key. All of them live in one file per key
+ * and are indexed by slot name, so a lookup is a single map access once the file is loaded.
+ *
+ * The file starts with {@link #MAGIC}, {@link #VERSION} and the vault's flags, followed by the
+ * wrapped data key if there is one, the number of records and then each slot name and its
+ * record. A record holds its own version, when it was created and updated, and the IV together
+ * with the cipher text, so the two can never get out of sync. The file is replaced as a whole
+ * with {@link FileStore#replace}.
+ *
+ * In envelope mode the secrets are encrypted in process with a data key, which is stored
+ * wrapped by the keystore key. Unwrapping it is then the only keystore operation needed to
+ * read or write any number of secrets.
+ */
+class SecretVault {
+    private static final String TAG = "SecretVault";
+    private static final String VAULT_FILENAME_PREFIX = "vault_";
+    private static final int MAGIC = 0x52564c54;
+    // Version 1 vaults have no flags.
+    private static final byte VERSION = 2;
+    private static final byte FLAG_ENVELOPE = 1;
+    private static final byte FLAG_WRAPPED_DATA_KEY = 2;
+    static final long UNKNOWN_TIME = 0;
+
+    private final String fileName;
+    private final Map<String, Record> records;
+    private boolean envelope;
+    @Nullable
+    private Record wrappedDataKey;
+
+    private SecretVault(String fileName, Map<String, Record> records) {
+        this.fileName = fileName;
+        this.records = records;
+    }
+
+    /**
+     * Loads the vault for keyName, returns an empty vault if nothing has been stored yet and
+     * null if the vault exists but cannot be read.
+     */
+    @Nullable
+    static SecretVault load(FileStore fileStore, String keyName) {
+        long start = Metrics.begin(Metrics.Phase.FILE_READ);
+        try {
+            return read(fileStore, keyName);
+        } finally {
+            Metrics.end(Metrics.Phase.FILE_READ, start);
+        }
+    }
+
+    @Nullable
+    private static SecretVault read(FileStore fileStore, String keyName) {
+        String fileName = fileNameFor(keyName);
+        byte[] bytes;
+        try {
+            bytes = fileStore.readFully(fileName);
+        } catch (FileNotFoundException e) {
+            return new SecretVault(fileName, new HashMap<String, Record>());
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read vault " + fileName, e);
+            return null;
+        }
+
+        // The whole file is already in memory, so parse it straight from the array.
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a vault file");
+            }
+            byte version = in.readByte();
+            if (version > VERSION) {
+                throw new IOException("Unsupported vault version " + version);
+            }
+            byte flags = version >= 2 ? in.readByte() : 0;
+            Record wrappedDataKey = null;
+            if ((flags & FLAG_WRAPPED_DATA_KEY) != 0) {
+                wrappedDataKey = Record.read(in);
+            }
+            int count = in.readInt();
+            Map<String, Record> records = new HashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                String slot = in.readUTF();
+                records.put(slot, Record.read(in));
+            }
+            SecretVault vault = new SecretVault(fileName, records);
+            vault.envelope = (flags & FLAG_ENVELOPE) != 0;
+            vault.wrappedDataKey = wrappedDataKey;
+            return vault;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to parse vault " + fileName, e);
+            return null;
+        }
+    }
+
+    /**
+     * Replaces the previous vault as a whole, see {@link FileStore#replace}, so a crash leaves
+     * either the old or the new vault but never a partially written one.
+     */
+    boolean save(FileStore fileStore) {
+        long start = Metrics.begin(Metrics.Phase.FILE_WRITE);
+        try {
+            return write(fileStore);
+        } finally {
+            Metrics.end(Metrics.Phase.FILE_WRITE, start);
+        }
+    }
+
+    private boolean write(FileStore fileStore) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            byte flags = 0;
+            if (envelope) {
+                flags |= FLAG_ENVELOPE;
+            }
+            if (wrappedDataKey != null) {
+                flags |= FLAG_WRAPPED_DATA_KEY;
+            }
+            out.writeByte(flags);
+            if (wrappedDataKey != null) {
+                wrappedDataKey.write(out);
+            }
+            out.writeInt(records.size());
+            for (Map.Entry<String, Record> entry : records.entrySet()) {
+                out.writeUTF(entry.getKey());
+                entry.getValue().write(out);
+            }
+            out.flush();
+            fileStore.replace(fileName, bytes.toByteArray());
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write vault " + fileName, e);
+            return false;
+        }
+    }
+
+    static boolean delete(FileStore fileStore, String keyName) {
+        return fileStore.delete(fileNameFor(keyName));
+    }
+
+    @Nullable
+    Record get(String slot) {
+        return records.get(slot);
+    }
+
+    void put(String slot, Record record) {
+        records.put(slot, record);
+    }
+
+    boolean remove(String slot) {
+        return records.remove(slot) != null;
+    }
+
+    Set<String> slots() {
+        return new HashSet<>(records.keySet());
+    }
+
+    /**
+     * Whether new secrets are encrypted with the data key rather than the keystore key.
+     */
+    boolean isEnvelope() {
+        return envelope;
+    }
+
+    /**
+     * The data key encrypted with the keystore key, null until the first secret is stored in
+     * envelope mode.
+     */
+    @Nullable
+    Record getWrappedDataKey() {
+        return wrappedDataKey;
+    }
+
+    void setWrappedDataKey(Record wrappedDataKey) {
+        this.wrappedDataKey = wrappedDataKey;
+    }
+
+    /**
+     * Drops every record and the data key, which a newly created keystore key cannot decrypt
+     * anyway, and switches envelope mode on or off for the secrets stored from now on.
+     * @return whether the vault changed and needs saving
+     */
+    boolean reset(boolean envelope) {
+        boolean changed = this.envelope != envelope || wrappedDataKey != null
+                || !records.isEmpty();
+        this.envelope = envelope;
+        wrappedDataKey = null;
+        records.clear();
+        return changed;
+    }
+
+    static String fileNameFor(String keyName) {
+        return FileStore.fileNameFor(VAULT_FILENAME_PREFIX, keyName);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static class Record {
+        // Version 1 records have no cipher mode and are always CBC, version 2 records have no
+        // flags and are always encrypted with the keystore key, version 3 records have no
+        // timestamps.
+        private static final byte VERSION = 4;
+        private static final byte FLAG_DATA_KEY = 1;
+
+        final CipherMode mode;
+        final byte[] iv;
+        final byte[] cipherText;
+        /**
+         * Whether the record is encrypted with the vault's data key instead of the keystore key.
+         */
+        final boolean usesDataKey;
+        /**
+         * When the slot was first stored and last replaced, in milliseconds since the epoch, or
+         * {@link #UNKNOWN_TIME} for records written before they were tracked.
+         */
+        final long createdAt;
+        final long updatedAt;
+
+        Record(CipherMode mode, byte[] iv, byte[] cipherText) {
+            this(mode, iv, cipherText, false);
+        }
+
+        Record(CipherMode mode, byte[] iv, byte[] cipherText, boolean usesDataKey) {
+            this(mode, iv, cipherText, usesDataKey, UNKNOWN_TIME, UNKNOWN_TIME);
+        }
+
+        Record(CipherMode mode, byte[] iv, byte[] cipherText, boolean usesDataKey,
+               long createdAt, long updatedAt) {
+            this.mode = mode;
+            this.iv = iv;
+            this.cipherText = cipherText;
+            this.usesDataKey = usesDataKey;
+            this.createdAt = createdAt;
+            this.updatedAt = updatedAt;
+        }
+
+        Record withTimestamps(long createdAt, long updatedAt) {
+            return new Record(mode, iv, cipherText, usesDataKey, createdAt, updatedAt);
+        }
+
+        static Record read(DataInputStream in) throws IOException {
+            byte version = in.readByte();
+            if (version > VERSION) {
+                throw new IOException("Unsupported record version " + version);
+            }
+            CipherMode mode = CipherMode.CBC;
+            if (version >= 2) {
+                try {
+                    mode = CipherMode.fromId(in.readByte());
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(e.getMessage());
+                }
+            }
+            byte flags = version >= 3 ? in.readByte() : 0;
+            long createdAt = UNKNOWN_TIME;
+            long updatedAt = UNKNOWN_TIME;
+            if (version >= 4) {
+                createdAt = in.readLong();
+                updatedAt = in.readLong();
+            }
+            byte[] iv = readBytes(in);
+            byte[] cipherText = readBytes(in);
+            return new Record(mode, iv, cipherText, (flags & FLAG_DATA_KEY) != 0, createdAt,
+                    updatedAt);
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeByte(VERSION);
+            out.writeByte(mode.id);
+            out.writeByte(usesDataKey ? FLAG_DATA_KEY : 0);
+            out.writeLong(createdAt);
+            out.writeLong(updatedAt);
+            writeBytes(out, iv);
+            writeBytes(out, cipherText);
+        }
+    }
+}
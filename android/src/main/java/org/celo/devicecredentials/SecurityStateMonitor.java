@@ -0,0 +1,163 @@
+package org.celo.devicecredentials;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Watches whether the device is secure and whether a set of keys are still usable, and reports
+ * each change once, so JS doesn't have to poll for them.
+ *
+ * Both can only change while the user is in the settings, so the state is checked again when the
+ * app is resumed, when the device is unlocked and when the device policy changes, never
+ * otherwise. Checks triggered while one is already queued are dropped.
+ */
+class SecurityStateMonitor extends BroadcastReceiver {
+    private static final String TAG = "SecurityStateMonitor";
+    // DevicePolicyManager.ACTION_DEVICE_POLICY_MANAGER_STATE_CHANGED, added in API 28.
+    private static final String ACTION_DEVICE_POLICY_MANAGER_STATE_CHANGED =
+            "android.app.action.DEVICE_POLICY_MANAGER_STATE_CHANGED";
+
+    interface Listener {
+        /**
+         * Called on the executor when the state differs from the one last checked.
+         */
+        void onSecurityStateChanged(State state);
+    }
+
+    private final Context context;
+    private final Executor executor;
+    private final Listener listener;
+    private final AtomicBoolean checkQueued = new AtomicBoolean();
+    private List<String> keyNames = Collections.emptyList();
+    private boolean observing;
+    // Only used on the executor.
+    private State lastState;
+
+    SecurityStateMonitor(Context context, Executor executor, Listener listener) {
+        this.context = context.getApplicationContext();
+        this.executor = executor;
+        this.listener = listener;
+    }
+
+    /**
+     * Starts watching keyNames, replacing the keys watched so far. Follow with
+     * {@link #resetBaseline} to set the state later changes are reported against.
+     */
+    synchronized void start(List<String> keyNames) {
+        this.keyNames = new ArrayList<>(keyNames);
+        if (!observing) {
+            IntentFilter filter = new IntentFilter(Intent.ACTION_USER_PRESENT);
+            filter.addAction(ACTION_DEVICE_POLICY_MANAGER_STATE_CHANGED);
+            context.registerReceiver(this, filter);
+            observing = true;
+        }
+    }
+
+    synchronized void stop() {
+        if (observing) {
+            context.unregisterReceiver(this);
+            observing = false;
+        }
+    }
+
+    synchronized boolean isObserving() {
+        return observing;
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        requestCheck();
+    }
+
+    /**
+     * Queues a {@link #check} on the executor unless one is queued already.
+     */
+    void requestCheck() {
+        if (!isObserving() || !checkQueued.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    check();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "requestCheck/too many pending operations", e);
+            checkQueued.set(false);
+        }
+    }
+
+    /**
+     * Reads the current state, and reports it to the listener if it changed since the last check.
+     * Blocks, so it must run on the executor.
+     */
+    State check() {
+        checkQueued.set(false);
+        State state = readState();
+        State previousState = lastState;
+        lastState = state;
+        if (previousState != null && !previousState.equals(state)) {
+            listener.onSecurityStateChanged(state);
+        }
+        return state;
+    }
+
+    /**
+     * Reads the current state without reporting it, later changes are reported against it.
+     * Blocks, so it must run on the executor.
+     */
+    State resetBaseline() {
+        lastState = readState();
+        return lastState;
+    }
+
+    private State readState() {
+        List<String> watchedKeyNames;
+        synchronized (this) {
+            watchedKeyNames = keyNames;
+        }
+        Map<String, KeyState> keyStates = new LinkedHashMap<>(watchedKeyNames.size() * 2);
+        for (String keyName : watchedKeyNames) {
+            keyStates.put(keyName, AndroidKeyStoreHelper.getKeyState(keyName));
+        }
+        return new State(AndroidKeyStoreHelper.isDeviceSecure(context), keyStates);
+    }
+
+    static class State {
+        final boolean deviceSecure;
+        final Map<String, KeyState> keyStates;
+
+        State(boolean deviceSecure, Map<String, KeyState> keyStates) {
+            this.deviceSecure = deviceSecure;
+            this.keyStates = keyStates;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof State)) {
+                return false;
+            }
+            State other = (State) o;
+            return deviceSecure == other.deviceSecure && keyStates.equals(other.keyStates);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * keyStates.hashCode() + (deviceSecure ? 1 : 0);
+        }
+    }
+}
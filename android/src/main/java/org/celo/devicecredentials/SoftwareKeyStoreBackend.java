@@ -0,0 +1,83 @@
+package org.celo.devicecredentials;
+
+import android.support.annotation.Nullable;
+
+import javax.crypto.KeyGenerator;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyStoreException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps keys in memory using the default JCE providers instead of the Android Key Store. The keys
+ * are not hardware backed, don't survive the process and don't require the user to
+ * authenticate, so this is only meant for running the storage code on a plain JVM, e.g. for
+ * benchmarks.
+ */
+class SoftwareKeyStoreBackend implements KeyStoreBackend {
+    private static final int KEY_SIZE_BITS = 256;
+
+    private final Map<String, SoftwareKey> keys = new ConcurrentHashMap<>();
+
+    @Nullable
+    @Override
+    public Key getKey(String keyName) {
+        SoftwareKey softwareKey = keys.get(keyName);
+        return softwareKey == null ? null : softwareKey.key;
+    }
+
+    @Override
+    public void generateKey(String keyName, KeyOptions options) throws GeneralSecurityException {
+        KeyGenerator keyGenerator = CryptoPool.keyGenerator("AES", null);
+        keyGenerator.init(KEY_SIZE_BITS);
+        keys.put(keyName, new SoftwareKey(keyGenerator.generateKey(), options));
+    }
+
+    @Override
+    public void deleteKey(String keyName) {
+        keys.remove(keyName);
+    }
+
+    @Override
+    public boolean containsAlias(String keyName) {
+        return keys.containsKey(keyName);
+    }
+
+    @Override
+    public List<String> aliases() {
+        return new ArrayList<>(keys.keySet());
+    }
+
+    @Override
+    public KeyDescription describeKey(String keyName, Key key) throws GeneralSecurityException {
+        SoftwareKey softwareKey = keys.get(keyName);
+        if (softwareKey == null) {
+            throw new KeyStoreException("No key named " + keyName);
+        }
+        return new KeyDescription(softwareKey.options.cipherMode,
+                softwareKey.options.reauthenticationTimeoutInSecs);
+    }
+
+    @Override
+    public void checkKeyUsable(Key key) {
+        // Usable without authenticating.
+    }
+
+    @Override
+    public void prewarm() throws GeneralSecurityException {
+        CryptoPool.keyGenerator("AES", null);
+    }
+
+    private static class SoftwareKey {
+        final Key key;
+        final KeyOptions options;
+
+        SoftwareKey(Key key, KeyOptions options) {
+            this.key = key;
+            this.options = options;
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package org.celo.devicecredentials;
+
+import com.facebook.react.bridge.ReactApplicationContext;
+
+/**
+ * Makes {@link RNConfirmDeviceCredentialsModule} implement the spec generated from
+ * src/NativeConfirmDeviceCredentials.js, so a method missing from the module or with the wrong
+ * types fails the build. The legacy architecture has its own version of this class in
+ * src/oldarch.
+ */
+abstract class RNConfirmDeviceCredentialsModuleBase extends NativeConfirmDeviceCredentialsSpec {
+    RNConfirmDeviceCredentialsModuleBase(ReactApplicationContext reactContext) {
+        super(reactContext);
+    }
+}
@@ -0,0 +1,60 @@
+package org.celo.devicecredentials;
+
+import android.support.annotation.Nullable;
+
+import com.facebook.react.TurboReactPackage;
+import com.facebook.react.bridge.NativeModule;
+import com.facebook.react.bridge.ReactApplicationContext;
+import com.facebook.react.module.model.ReactModuleInfo;
+import com.facebook.react.module.model.ReactModuleInfoProvider;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Use instead of {@link RNConfirmDeviceCredentialsPackage} on hosts with the new architecture
+ * enabled. The module is only created when JS first accesses it, rather than when the bridge
+ * starts up.
+ */
+public class RNConfirmDeviceCredentialsTurboPackage extends TurboReactPackage {
+    private final boolean prewarm;
+
+    public RNConfirmDeviceCredentialsTurboPackage() {
+        this(false);
+    }
+
+    /**
+     * @param prewarm whether to warm up the keystore and cipher providers in the background as
+     *                soon as the module is created, which is on first access
+     */
+    public RNConfirmDeviceCredentialsTurboPackage(boolean prewarm) {
+        this.prewarm = prewarm;
+    }
+
+    @Nullable
+    @Override
+    public NativeModule getModule(String name, ReactApplicationContext reactContext) {
+        if (RNConfirmDeviceCredentialsModule.NAME.equals(name)) {
+            return new RNConfirmDeviceCredentialsModule(reactContext, prewarm);
+        }
+        return null;
+    }
+
+    @Override
+    public ReactModuleInfoProvider getReactModuleInfoProvider() {
+        return new ReactModuleInfoProvider() {
+            @Override
+            public Map<String, ReactModuleInfo> getReactModuleInfos() {
+                return Collections.singletonMap(RNConfirmDeviceCredentialsModule.NAME,
+                        new ReactModuleInfo(
+                                RNConfirmDeviceCredentialsModule.NAME,
+                                RNConfirmDeviceCredentialsModule.class.getName(),
+                                false, // canOverrideExistingModule
+                                false, // needsEagerInit
+                                true, // hasConstants
+                                false, // isCxxModule
+                                true)); // isTurboModule
+            }
+        };
+    }
+}
@@ -0,0 +1,23 @@
+package org.celo.devicecredentials;
+
+import com.facebook.react.bridge.ReactApplicationContext;
+import com.facebook.react.bridge.ReactContextBaseJavaModule;
+
+import java.util.Map;
+
+/**
+ * The legacy counterpart of the class extending the generated spec in src/newarch, exposing the
+ * constants the same way the spec does.
+ */
+abstract class RNConfirmDeviceCredentialsModuleBase extends ReactContextBaseJavaModule {
+    RNConfirmDeviceCredentialsModuleBase(ReactApplicationContext reactContext) {
+        super(reactContext);
+    }
+
+    protected abstract Map<String, Object> getTypedExportedConstants();
+
+    @Override
+    public final Map<String, Object> getConstants() {
+        return getTypedExportedConstants();
+    }
+}
@@ -0,0 +1,134 @@
+package org.celo.devicecredentials;
+
+import android.app.Activity;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Goes through the lock screen and the screen lock prompt thousands of times and checks that
+ * the module keeps a single activity event listener and no activity result registered once each
+ * operation has settled, also when the lock screen fails to start.
+ */
+public class ActivityResultStressTest {
+    private static final String KEY_NAME = "stress";
+    private static final int VALIDITY_SECS = 30;
+    private static final int ITERATIONS = 5000;
+    private static final long SETTLE_TIMEOUT_MILLIS = 10000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Simulation simulation;
+    private TestReactContext context;
+    private RNConfirmDeviceCredentialsModule module;
+
+    @Before
+    public void setUp() throws Exception {
+        simulation = Simulation.install(folder.newFolder());
+        context = new TestReactContext(new Activity());
+        module = new RNConfirmDeviceCredentialsModule(context, false,
+                simulation.clock.scheduler());
+        assertTrue(AndroidKeyStoreHelper.createKey(context, KEY_NAME,
+                new KeyOptions(VALIDITY_SECS, false, CipherMode.GCM, false)));
+        simulation.keyStore.onUserAuthenticated();
+        AndroidKeyStoreHelper.onUserAuthenticated();
+        assertTrue(AndroidKeyStoreHelper.storeSecret(context, KEY_NAME, "slot", "secret"));
+    }
+
+    @After
+    public void tearDown() {
+        module.onCatalystInstanceDestroy();
+        Simulation.uninstall();
+    }
+
+    @Test
+    public void listenerCountStaysConstantAcrossLockScreens() throws Exception {
+        for (int i = 0; i < ITERATIONS; i++) {
+            simulation.clock.advance((VALIDITY_SECS + 1) * 1000L);
+            RecordingPromise promise = new RecordingPromise();
+            module.retrieveSecret(KEY_NAME, "slot", promise.promise);
+            awaitLockScreen();
+
+            boolean confirmed = i % 3 != 0;
+            assertTrue(simulation.keyguard.confirmCredentials(context.activityResults(),
+                    confirmed));
+            assertTrue(promise.await(SETTLE_TIMEOUT_MILLIS));
+            assertEquals(confirmed, promise.isResolved());
+            assertEquals(1, promise.settleCount());
+            assertNothingPending();
+        }
+    }
+
+    @Test
+    public void listenerCountStaysConstantAcrossScreenLockPrompts() throws Exception {
+        for (int i = 0; i < ITERATIONS; i++) {
+            RecordingPromise promise = new RecordingPromise();
+            module.makeDeviceSecure("Set up a screen lock", "Settings", promise.promise);
+            if (i % 2 == 0) {
+                assertTrue(simulation.keyguard.answerPrompt(false));
+            } else {
+                assertTrue(simulation.keyguard.answerPrompt(true));
+                assertTrue(simulation.keyguard.finishSettings(context.activityResults(),
+                        true));
+            }
+            assertTrue(promise.await(SETTLE_TIMEOUT_MILLIS));
+            assertEquals(i % 2 != 0, promise.isResolved());
+            assertEquals(1, promise.settleCount());
+            assertNothingPending();
+        }
+    }
+
+    @Test
+    public void lockScreenFailureRejectsEveryWaitingCall() throws Exception {
+        IllegalStateException failure = new IllegalStateException("No activity for the intent");
+        simulation.keyguard.failLockScreens(failure);
+        for (int i = 0; i < ITERATIONS / 10; i++) {
+            simulation.clock.advance((VALIDITY_SECS + 1) * 1000L);
+            RecordingPromise retrieve = new RecordingPromise();
+            RecordingPromise store = new RecordingPromise();
+            module.retrieveSecret(KEY_NAME, "slot", retrieve.promise);
+            module.storeSecret(KEY_NAME, "other", "secret", store.promise);
+
+            assertTrue(retrieve.await(SETTLE_TIMEOUT_MILLIS));
+            assertTrue(store.await(SETTLE_TIMEOUT_MILLIS));
+            assertEquals("RETRIEVE_SECRET_ERROR", retrieve.errorCode());
+            assertEquals("STORE_SECRET_ERROR", store.errorCode());
+            awaitBackgroundWork();
+            assertEquals(1, retrieve.settleCount());
+            assertEquals(1, store.settleCount());
+            assertNothingPending();
+        }
+    }
+
+    /**
+     * Waits for the background work queued so far, which would settle the promises again if it
+     * went wrong, by queuing more behind it on the single background thread.
+     */
+    private void awaitBackgroundWork() throws InterruptedException {
+        RecordingPromise prewarm = new RecordingPromise();
+        module.prewarm(null, prewarm.promise);
+        assertTrue(prewarm.await(SETTLE_TIMEOUT_MILLIS));
+    }
+
+    private void awaitLockScreen() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + SETTLE_TIMEOUT_MILLIS;
+        while (simulation.keyguard.pendingLockScreens() == 0) {
+            assertTrue("No lock screen shown", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private void assertNothingPending() {
+        assertEquals(0, module.pendingActivityResultCount());
+        assertEquals(0, simulation.clock.scheduler().pendingCount());
+        assertEquals(0, simulation.keyguard.pendingLockScreens());
+        assertEquals(1, context.activityEventListenerCount());
+    }
+}
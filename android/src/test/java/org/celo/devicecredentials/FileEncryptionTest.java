@@ -0,0 +1,94 @@
+package org.celo.devicecredentials;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.security.Security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Encrypting and decrypting files with {@link AndroidKeyStoreHelper#encryptFile} and
+ * {@link AndroidKeyStoreHelper#decryptFile}, and the size limit of GCM keys.
+ */
+public class FileEncryptionTest {
+    private static final String CBC_KEY = "cbc";
+    private static final String GCM_KEY = "gcm";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Simulation simulation;
+
+    @BeforeClass
+    public static void addProvider() {
+        Security.addProvider(new BouncyCastleProvider());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        simulation = Simulation.install(folder.newFolder());
+        assertTrue(AndroidKeyStoreHelper.createKey(null, CBC_KEY,
+                new KeyOptions(30, false, CipherMode.CBC, false)));
+        assertTrue(AndroidKeyStoreHelper.createKey(null, GCM_KEY,
+                new KeyOptions(30, false, CipherMode.GCM, false)));
+        simulation.keyStore.onUserAuthenticated();
+        AndroidKeyStoreHelper.onUserAuthenticated();
+    }
+
+    @After
+    public void tearDown() {
+        Simulation.uninstall();
+    }
+
+    @Test
+    public void gcmKeysRoundTripFilesUpToTheLimit() throws Exception {
+        File source = file("source", FileCipher.MAX_GCM_FILE_SIZE);
+        File encrypted = new File(folder.getRoot(), "encrypted");
+        File decrypted = new File(folder.getRoot(), "decrypted");
+
+        assertTrue(AndroidKeyStoreHelper.encryptFile(GCM_KEY, source, encrypted, null));
+        assertTrue(AndroidKeyStoreHelper.decryptFile(GCM_KEY, encrypted, decrypted, null));
+        assertEquals(source.length(), decrypted.length());
+    }
+
+    @Test
+    public void gcmKeysRefuseLargerFiles() throws Exception {
+        File source = file("source", FileCipher.MAX_GCM_FILE_SIZE + 1);
+        File encrypted = new File(folder.getRoot(), "encrypted");
+
+        assertFalse(AndroidKeyStoreHelper.encryptFile(GCM_KEY, source, encrypted, null));
+        assertFalse(encrypted.exists());
+    }
+
+    @Test
+    public void cbcKeysHaveNoLimit() throws Exception {
+        File source = file("source", FileCipher.MAX_GCM_FILE_SIZE + 1);
+        File encrypted = new File(folder.getRoot(), "encrypted");
+        File decrypted = new File(folder.getRoot(), "decrypted");
+
+        assertTrue(AndroidKeyStoreHelper.encryptFile(CBC_KEY, source, encrypted, null));
+        assertTrue(AndroidKeyStoreHelper.decryptFile(CBC_KEY, encrypted, decrypted, null));
+        assertEquals(source.length(), decrypted.length());
+    }
+
+    private File file(String name, long length) throws Exception {
+        File file = new File(folder.getRoot(), name);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(length);
+        } finally {
+            randomAccessFile.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,246 @@
+package org.celo.devicecredentials;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.util.Iterator;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Rotating a key's secrets to a new key through {@link AndroidKeyStoreHelper#rotateKey}, including
+ * resuming from the checkpoint after an interruption at each stage.
+ */
+public class KeyRotationTest {
+    private static final String OLD_KEY = "old";
+    private static final String NEW_KEY = "new";
+    private static final KeyOptions OPTIONS = new KeyOptions(30, false, CipherMode.GCM, false);
+    // More than two batches, the last one partial.
+    private static final int SLOTS = 40;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Simulation simulation;
+    private FileStore fileStore;
+
+    @Before
+    public void setUp() throws Exception {
+        File directory = folder.newFolder();
+        simulation = Simulation.install(directory);
+        fileStore = new FileStore(directory);
+        assertTrue(AndroidKeyStoreHelper.createKey(null, OLD_KEY, OPTIONS));
+        authenticate();
+        for (int i = 0; i < SLOTS; i++) {
+            assertTrue(AndroidKeyStoreHelper.storeSecret(null, OLD_KEY, slot(i), value(i)));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        Simulation.uninstall();
+    }
+
+    @Test
+    public void movesEverySecretInBatches() throws Exception {
+        assertEquals(AndroidKeyStoreHelper.RotationStatus.IN_PROGRESS, rotate());
+        assertEquals(AndroidKeyStoreHelper.RotationStatus.IN_PROGRESS, rotate());
+        assertEquals(AndroidKeyStoreHelper.RotationStatus.IN_PROGRESS, rotate());
+        assertEquals(AndroidKeyStoreHelper.RotationStatus.DONE, rotate());
+
+        assertRotated();
+        for (int i = 0; i < SLOTS; i++) {
+            assertEquals(value(i), AndroidKeyStoreHelper.retrieveSecret(null, NEW_KEY, slot(i)));
+        }
+    }
+
+    @Test
+    public void resumesAfterPartialCopyWithoutCopyingAgain() throws Exception {
+        assertEquals(AndroidKeyStoreHelper.RotationStatus.IN_PROGRESS, rotate());
+        RotationCheckpoint checkpoint = RotationCheckpoint.load(fileStore, OLD_KEY);
+        assertNotNull(checkpoint);
+        assertEquals(NEW_KEY, checkpoint.newKeyName);
+        assertFalse(checkpoint.isSwitchedOver());
+        String copiedSlot = checkpoint.copiedSlots().iterator().next();
+        byte[] copiedIv = SecretVault.load(fileStore, NEW_KEY).get(copiedSlot).iv;
+
+        restart();
+        // The old key keeps working while the rotation is interrupted.
+        assertEquals(value(0), AndroidKeyStoreHelper.retrieveSecret(null, OLD_KEY, slot(0)));
+        rotateToCompletion();
+
+        assertRotated();
+        assertArrayEquals(copiedIv, SecretVault.load(fileStore, NEW_KEY).get(copiedSlot).iv);
+        for (int i = 0; i < SLOTS; i++) {
+            assertEquals(value(i), AndroidKeyStoreHelper.retrieveSecret(null, NEW_KEY, slot(i)));
+        }
+    }
+
+    @Test
+    public void copiesAgainSlotsRewrittenUnderTheOldKey() throws Exception {
+        assertEquals(AndroidKeyStoreHelper.RotationStatus.IN_PROGRESS, rotate());
+        Iterator<String> copied =
+                RotationCheckpoint.load(fileStore, OLD_KEY).copiedSlots().iterator();
+        String rewrittenSlot = copied.next();
+        String deletedSlot = copied.next();
+        assertTrue(AndroidKeyStoreHelper.storeSecret(null, OLD_KEY, rewrittenSlot, "rewritten"));
+        assertTrue(AndroidKeyStoreHelper.deleteSecret(null, OLD_KEY, deletedSlot));
+        rotateToCompletion();
+
+        assertRotated();
+        assertEquals("rewritten",
+                AndroidKeyStoreHelper.retrieveSecret(null, NEW_KEY, rewrittenSlot));
+        assertNull(AndroidKeyStoreHelper.retrieveSecret(null, NEW_KEY, deletedSlot));
+        assertEquals(SLOTS - 1, SecretVault.load(fileStore, NEW_KEY).slots().size());
+    }
+
+    @Test
+    public void resumingAfterSwitchingOverOnlyDeletesTheOldKey() throws Exception {
+        for (int i = 0; i * 16 < SLOTS; i++) {
+            assertEquals(AndroidKeyStoreHelper.RotationStatus.IN_PROGRESS, rotate());
+        }
+        assertEquals(SecretVault.load(fileStore, OLD_KEY).slots(),
+                RotationCheckpoint.load(fileStore, OLD_KEY).copiedSlots());
+        // Interrupted right after recording the switch over.
+        RotationCheckpoint checkpoint = RotationCheckpoint.load(fileStore, OLD_KEY);
+        checkpoint.setSwitchedOver();
+        assertTrue(checkpoint.save(fileStore, OLD_KEY));
+        assertTrue(AndroidKeyStoreHelper.storeSecret(null, OLD_KEY, "late", "ignored"));
+
+        restart();
+        assertTrue(RotationCheckpoint.load(fileStore, OLD_KEY).isSwitchedOver());
+        assertEquals(AndroidKeyStoreHelper.RotationStatus.DONE, rotate());
+
+        assertRotated();
+        assertFalse(SecretVault.load(fileStore, NEW_KEY).slots().contains("late"));
+        assertEquals(value(0), AndroidKeyStoreHelper.retrieveSecret(null, NEW_KEY, slot(0)));
+    }
+
+    @Test
+    public void recreatesANewKeyLostMidRotationAndCopiesEverythingAgain() throws Exception {
+        assertEquals(AndroidKeyStoreHelper.RotationStatus.IN_PROGRESS, rotate());
+        assertTrue(AndroidKeyStoreHelper.deleteKey(NEW_KEY));
+
+        restart();
+        rotateToCompletion();
+
+        assertRotated();
+        for (int i = 0; i < SLOTS; i++) {
+            assertEquals(value(i), AndroidKeyStoreHelper.retrieveSecret(null, NEW_KEY, slot(i)));
+        }
+    }
+
+    @Test
+    public void refusesAnExistingTargetKey() throws Exception {
+        assertTrue(AndroidKeyStoreHelper.createKey(null, NEW_KEY, OPTIONS));
+        assertEquals(AndroidKeyStoreHelper.RotationStatus.FAILED, rotate());
+        assertNotRotated();
+    }
+
+    @Test
+    public void refusesATargetWhichStillHasSecrets() throws Exception {
+        assertTrue(AndroidKeyStoreHelper.createKey(null, NEW_KEY, OPTIONS));
+        assertTrue(AndroidKeyStoreHelper.storeSecret(null, NEW_KEY, "other", "secret"));
+        assertTrue(AndroidKeyStoreHelper.deleteKey(NEW_KEY));
+
+        assertEquals(AndroidKeyStoreHelper.RotationStatus.FAILED, rotate());
+        assertNotRotated();
+        assertTrue(fileStore.exists(SecretVault.fileNameFor(NEW_KEY)));
+    }
+
+    @Test
+    public void refusesRotatingToAnotherKeyWhileInProgress() throws Exception {
+        assertEquals(AndroidKeyStoreHelper.RotationStatus.IN_PROGRESS, rotate());
+        assertEquals(AndroidKeyStoreHelper.RotationStatus.FAILED,
+                AndroidKeyStoreHelper.rotateKey(null, OLD_KEY, "other", OPTIONS));
+        rotateToCompletion();
+        assertRotated();
+    }
+
+    @Test
+    public void resumesFromAVersion1Checkpoint() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0x52524f54);
+        out.writeByte(1);
+        out.writeUTF(NEW_KEY);
+        out.writeInt(OPTIONS.reauthenticationTimeoutInSecs);
+        out.writeBoolean(OPTIONS.invalidateKeyByNewBiometricEnrollment);
+        out.writeByte(OPTIONS.cipherMode.id);
+        out.writeBoolean(OPTIONS.envelope);
+        out.writeInt(0);
+        fileStore.replace(FileStore.fileNameFor("rotation_", OLD_KEY), bytes.toByteArray());
+
+        RotationCheckpoint checkpoint = RotationCheckpoint.load(fileStore, OLD_KEY);
+        assertEquals(NEW_KEY, checkpoint.newKeyName);
+        assertEquals(CipherMode.GCM, checkpoint.options.cipherMode);
+        assertFalse(checkpoint.isSwitchedOver());
+        assertTrue(checkpoint.copiedSlots().isEmpty());
+
+        // Written before the new key was created, so it is created on resuming.
+        rotateToCompletion();
+        assertRotated();
+        assertEquals(value(0), AndroidKeyStoreHelper.retrieveSecret(null, NEW_KEY, slot(0)));
+    }
+
+    private AndroidKeyStoreHelper.RotationStatus rotate() throws Exception {
+        return AndroidKeyStoreHelper.rotateKey(null, OLD_KEY, NEW_KEY, OPTIONS);
+    }
+
+    private void rotateToCompletion() throws Exception {
+        for (int i = 0; i <= SLOTS; i++) {
+            AndroidKeyStoreHelper.RotationStatus status = rotate();
+            if (status == AndroidKeyStoreHelper.RotationStatus.DONE) {
+                return;
+            }
+            assertEquals(AndroidKeyStoreHelper.RotationStatus.IN_PROGRESS, status);
+        }
+        throw new AssertionError("The rotation never finished");
+    }
+
+    /**
+     * Forgets everything the helper keeps in memory, as when the app is killed and started
+     * again, the keys and files staying as they are.
+     */
+    private void restart() {
+        AndroidKeyStoreHelper.setBackends(simulation.keyStore, fileStore, simulation.keyguard);
+        authenticate();
+    }
+
+    private void authenticate() {
+        simulation.keyStore.onUserAuthenticated();
+        AndroidKeyStoreHelper.onUserAuthenticated();
+    }
+
+    private void assertRotated() throws Exception {
+        assertFalse(AndroidKeyStoreHelper.keyExists(OLD_KEY));
+        assertFalse(fileStore.exists(SecretVault.fileNameFor(OLD_KEY)));
+        assertNull(RotationCheckpoint.load(fileStore, OLD_KEY));
+        assertTrue(AndroidKeyStoreHelper.keyExists(NEW_KEY));
+    }
+
+    private void assertNotRotated() throws Exception {
+        assertNull(RotationCheckpoint.load(fileStore, OLD_KEY));
+        assertTrue(AndroidKeyStoreHelper.keyExists(OLD_KEY));
+        assertEquals(value(0), AndroidKeyStoreHelper.retrieveSecret(null, OLD_KEY, slot(0)));
+    }
+
+    private static String slot(int i) {
+        return "slot" + i;
+    }
+
+    private static String value(int i) {
+        return "secret" + i;
+    }
+}
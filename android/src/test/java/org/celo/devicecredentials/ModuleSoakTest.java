@@ -0,0 +1,221 @@
+package org.celo.devicecredentials;
+
+import android.app.Activity;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the module against {@link Simulation} from many threads at once, with the lock screen
+ * being confirmed, cancelled or left to time out, and checks that every promise settles exactly
+ * once and nothing is left registered afterwards.
+ */
+public class ModuleSoakTest {
+    private static final String KEY_NAME = "soak";
+    private static final int VALIDITY_SECS = 30;
+    private static final int WORKERS = 8;
+    private static final int OPERATIONS_PER_WORKER = 250;
+    private static final long SETTLE_TIMEOUT_MILLIS = 10000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Simulation simulation;
+    private TestReactContext context;
+    private RNConfirmDeviceCredentialsModule module;
+
+    @Before
+    public void setUp() throws Exception {
+        simulation = Simulation.install(folder.newFolder());
+        context = new TestReactContext(new Activity());
+        module = new RNConfirmDeviceCredentialsModule(context, false,
+                simulation.clock.scheduler());
+        assertTrue(AndroidKeyStoreHelper.createKey(context, KEY_NAME,
+                new KeyOptions(VALIDITY_SECS, false, CipherMode.GCM, true)));
+    }
+
+    @After
+    public void tearDown() {
+        module.onCatalystInstanceDestroy();
+        Simulation.uninstall();
+    }
+
+    @Test
+    public void everyPromiseSettlesUnderConcurrentLoad() throws Exception {
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicInteger unsettled = new AtomicInteger();
+        final AtomicInteger settledTwice = new AtomicInteger();
+        final AtomicInteger wrongValues = new AtomicInteger();
+        final AtomicInteger resolved = new AtomicInteger();
+        final CountDownLatch workersDone = new CountDownLatch(WORKERS);
+
+        // Plays the user: confirms most lock screens, cancels some, and lets the authentication
+        // window close every so often so later operations need the lock screen again.
+        Thread user = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Random random = new Random(42);
+                int answered = 0;
+                while (!done.get()) {
+                    if (simulation.keyguard.confirmCredentials(context.activityResults(),
+                            random.nextInt(10) != 0)) {
+                        if (++answered % 20 == 0) {
+                            simulation.clock.advance((VALIDITY_SECS + 1) * 1000L);
+                        }
+                    } else {
+                        Thread.yield();
+                    }
+                }
+            }
+        }, "user");
+        user.start();
+
+        for (int i = 0; i < WORKERS; i++) {
+            final int worker = i;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        String slot = "slot" + worker;
+                        String stored = null;
+                        for (int j = 0; j < OPERATIONS_PER_WORKER; j++) {
+                            RecordingPromise promise = new RecordingPromise();
+                            boolean store = j % 2 == 0;
+                            String value = worker + "-" + j;
+                            if (store) {
+                                module.storeSecret(KEY_NAME, slot, value, promise.promise);
+                            } else {
+                                module.retrieveSecret(KEY_NAME, slot, promise.promise);
+                            }
+                            if (!promise.await(SETTLE_TIMEOUT_MILLIS)) {
+                                unsettled.incrementAndGet();
+                                continue;
+                            }
+                            if (!promise.isResolved()) {
+                                continue;
+                            }
+                            resolved.incrementAndGet();
+                            if (store) {
+                                stored = value;
+                            } else if (stored != null && !stored.equals(promise.value())) {
+                                wrongValues.incrementAndGet();
+                            }
+                            if (promise.settleCount() != 1) {
+                                settledTwice.incrementAndGet();
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        workersDone.countDown();
+                    }
+                }
+            }, "worker" + i).start();
+        }
+        workersDone.await();
+        done.set(true);
+        user.join();
+
+        int operations = WORKERS * OPERATIONS_PER_WORKER;
+        assertEquals(0, unsettled.get());
+        assertEquals(0, settledTwice.get());
+        assertEquals(0, wrongValues.get());
+        assertTrue(resolved.get() > operations / 2);
+        assertNothingPending();
+    }
+
+    @Test
+    public void concurrentCallersShareOneLockScreen() throws Exception {
+        storeAndCloseWindow();
+
+        List<RecordingPromise> promises = new ArrayList<>();
+        for (int i = 0; i < 32; i++) {
+            RecordingPromise promise = new RecordingPromise();
+            module.retrieveSecret(KEY_NAME, "slot", promise.promise);
+            promises.add(promise);
+        }
+        drainExecutor();
+
+        assertEquals(1, simulation.keyguard.pendingLockScreens());
+        assertEquals(1, module.pendingActivityResultCount());
+        for (RecordingPromise promise : promises) {
+            assertFalse(promise.isSettled());
+        }
+
+        assertTrue(simulation.keyguard.confirmCredentials(context.activityResults(), true));
+        for (RecordingPromise promise : promises) {
+            assertTrue(promise.await(SETTLE_TIMEOUT_MILLIS));
+            assertTrue(promise.isResolved());
+            assertEquals("secret", promise.value());
+            assertEquals(1, promise.settleCount());
+        }
+        assertNothingPending();
+    }
+
+    @Test
+    public void unansweredLockScreenTimesOut() throws Exception {
+        storeAndCloseWindow();
+        RecordingPromise promise = new RecordingPromise();
+        module.retrieveSecret(KEY_NAME, "slot", promise.promise);
+        drainExecutor();
+        assertEquals(1, module.pendingActivityResultCount());
+
+        simulation.clock.advance(ActivityResultDispatcher.RESULT_TIMEOUT_MILLIS - 1);
+        assertFalse(promise.isSettled());
+        simulation.clock.advance(1);
+
+        assertTrue(promise.isSettled());
+        assertEquals("USER_NOT_AUTHENTICATED_ERROR", promise.errorCode());
+        assertEquals(0, module.pendingActivityResultCount());
+        assertEquals(0, simulation.clock.scheduler().pendingCount());
+
+        // The lock screen returning after the timeout must be ignored.
+        assertTrue(simulation.keyguard.confirmCredentials(context.activityResults(), true));
+        assertEquals(1, promise.settleCount());
+    }
+
+    /**
+     * Stores "secret" in "slot", then lets the authentication window close so reading it back
+     * needs the lock screen.
+     */
+    private void storeAndCloseWindow() throws Exception {
+        simulation.keyStore.onUserAuthenticated();
+        AndroidKeyStoreHelper.onUserAuthenticated();
+        assertTrue(AndroidKeyStoreHelper.storeSecret(context, KEY_NAME, "slot", "secret"));
+        simulation.clock.advance((VALIDITY_SECS + 1) * 1000L);
+    }
+
+    /**
+     * Waits for the operations queued so far, as the module runs them one at a time in order.
+     */
+    /**
+     * Waits for the background work queued so far and the UI work it posted.
+     */
+    private void drainExecutor() throws InterruptedException {
+        RecordingPromise barrier = new RecordingPromise();
+        module.hasSecret(KEY_NAME, "barrier", barrier.promise);
+        assertTrue(barrier.await(SETTLE_TIMEOUT_MILLIS));
+        context.drainUiThread();
+    }
+
+    private void assertNothingPending() throws InterruptedException {
+        drainExecutor();
+        assertEquals(0, module.pendingActivityResultCount());
+        assertEquals(0, simulation.clock.scheduler().pendingCount());
+        assertEquals(1, context.activityEventListenerCount());
+    }
+}
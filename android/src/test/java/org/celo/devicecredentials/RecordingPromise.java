@@ -0,0 +1,81 @@
+package org.celo.devicecredentials;
+
+import com.facebook.react.bridge.Promise;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A promise which records how it was settled. It is a proxy rather than an implementation of
+ * {@link Promise}, whose reject overloads differ between React Native versions.
+ */
+final class RecordingPromise implements InvocationHandler {
+    final Promise promise = (Promise) Proxy.newProxyInstance(Promise.class.getClassLoader(),
+            new Class<?>[]{Promise.class}, this);
+
+    private final CountDownLatch settled = new CountDownLatch(1);
+    private final AtomicInteger settleCount = new AtomicInteger();
+    private volatile boolean resolved;
+    private volatile Object value;
+    private volatile String errorCode;
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+        if (method.getDeclaringClass() == Object.class) {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    return "RecordingPromise";
+            }
+        }
+        if (method.getName().equals("resolve")) {
+            resolved = true;
+            value = args == null || args.length == 0 ? null : args[0];
+        } else if (method.getName().equals("reject")) {
+            errorCode = args != null && args.length > 0 && args[0] instanceof String
+                    ? (String) args[0] : null;
+        } else {
+            return null;
+        }
+        settleCount.incrementAndGet();
+        settled.countDown();
+        return null;
+    }
+
+    /**
+     * @return whether the promise was settled within timeoutMillis
+     */
+    boolean await(long timeoutMillis) throws InterruptedException {
+        return settled.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    boolean isSettled() {
+        return settleCount.get() > 0;
+    }
+
+    /**
+     * How many times the promise was resolved or rejected, which must never be more than once.
+     */
+    int settleCount() {
+        return settleCount.get();
+    }
+
+    boolean isResolved() {
+        return resolved;
+    }
+
+    Object value() {
+        return value;
+    }
+
+    String errorCode() {
+        return errorCode;
+    }
+}
@@ -0,0 +1,148 @@
+package org.celo.devicecredentials;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.security.Security;
+
+import javax.crypto.Cipher;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Storing secrets through {@link AndroidKeyStoreHelper}: keys of both cipher modes, envelope
+ * vaults and moving the legacy PIN files into the vault.
+ */
+public class SecretStorageTest {
+    private static final String CBC_KEY = "cbc";
+    private static final String GCM_KEY = "gcm";
+    private static final String ENVELOPE_KEY = "envelope";
+    private static final String PIN = "123456";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Simulation simulation;
+    private FileStore fileStore;
+
+    @BeforeClass
+    public static void addProvider() {
+        Security.addProvider(new BouncyCastleProvider());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        File directory = folder.newFolder();
+        simulation = Simulation.install(directory);
+        fileStore = new FileStore(directory);
+        assertTrue(AndroidKeyStoreHelper.createKey(null, CBC_KEY, options(CipherMode.CBC, false)));
+        assertTrue(AndroidKeyStoreHelper.createKey(null, GCM_KEY, options(CipherMode.GCM, false)));
+        assertTrue(AndroidKeyStoreHelper.createKey(null, ENVELOPE_KEY,
+                options(CipherMode.GCM, true)));
+        authenticate();
+    }
+
+    @After
+    public void tearDown() {
+        Simulation.uninstall();
+    }
+
+    @Test
+    public void keysOfBothModesStoreSideBySide() throws Exception {
+        assertTrue(AndroidKeyStoreHelper.storeSecret(null, CBC_KEY, "slot", "cbc secret"));
+        assertTrue(AndroidKeyStoreHelper.storeSecret(null, GCM_KEY, "slot", "gcm secret"));
+
+        assertEquals(CipherMode.CBC, SecretVault.load(fileStore, CBC_KEY).get("slot").mode);
+        assertEquals(CipherMode.GCM, SecretVault.load(fileStore, GCM_KEY).get("slot").mode);
+        AndroidKeyStoreHelper.clearSecretCache();
+        assertEquals("cbc secret", AndroidKeyStoreHelper.retrieveSecret(null, CBC_KEY, "slot"));
+        assertEquals("gcm secret", AndroidKeyStoreHelper.retrieveSecret(null, GCM_KEY, "slot"));
+    }
+
+    @Test
+    public void envelopeVaultsRoundTripThroughTheWrappedDataKey() throws Exception {
+        assertTrue(AndroidKeyStoreHelper.storeSecret(null, ENVELOPE_KEY, "first", "one"));
+        assertTrue(AndroidKeyStoreHelper.storeSecret(null, ENVELOPE_KEY, "second", "two"));
+        SecretVault vault = SecretVault.load(fileStore, ENVELOPE_KEY);
+        assertTrue(vault.isEnvelope());
+        SecretVault.Record wrappedDataKey = vault.getWrappedDataKey();
+        assertNotNull(wrappedDataKey);
+        assertTrue(vault.get("first").usesDataKey);
+        assertTrue(vault.get("second").usesDataKey);
+
+        // Unwraps the data key again, as after a restart.
+        AndroidKeyStoreHelper.clearSecretCache();
+        AndroidKeyStoreHelper.clearDataKeyCache();
+        restart();
+        assertEquals("one", AndroidKeyStoreHelper.retrieveSecret(null, ENVELOPE_KEY, "first"));
+        assertEquals("two", AndroidKeyStoreHelper.retrieveSecret(null, ENVELOPE_KEY, "second"));
+        // Storing another secret keeps the data key the others were encrypted with.
+        assertTrue(AndroidKeyStoreHelper.storeSecret(null, ENVELOPE_KEY, "third", "three"));
+        assertArrayEquals(wrappedDataKey.cipherText,
+                SecretVault.load(fileStore, ENVELOPE_KEY).getWrappedDataKey().cipherText);
+    }
+
+    @Test
+    public void movesTheLegacyPinIntoTheVaultOfTheKeyItDecryptsWith() throws Exception {
+        writeLegacyPin(CBC_KEY);
+        File legacyPin = fileStore.file("pin_encrypted.txt");
+        long lastModified = legacyPin.lastModified();
+
+        assertEquals(PIN, AndroidKeyStoreHelper.retrievePin(null, CBC_KEY));
+
+        assertFalse(legacyPin.exists());
+        assertFalse(fileStore.exists("pin_iv.txt"));
+        SecretVault.Record record =
+                SecretVault.load(fileStore, CBC_KEY).get(AndroidKeyStoreHelper.DEFAULT_SLOT);
+        assertNotNull(record);
+        assertEquals(CipherMode.CBC, record.mode);
+        assertFalse(record.usesDataKey);
+        assertEquals(lastModified, record.updatedAt);
+        AndroidKeyStoreHelper.clearSecretCache();
+        assertEquals(PIN, AndroidKeyStoreHelper.retrievePin(null, CBC_KEY));
+    }
+
+    @Test
+    public void storingAPinReplacesTheLegacyPin() throws Exception {
+        writeLegacyPin(CBC_KEY);
+
+        assertTrue(AndroidKeyStoreHelper.storePin(null, CBC_KEY, "654321"));
+
+        assertFalse(fileStore.exists("pin_encrypted.txt"));
+        assertFalse(fileStore.exists("pin_iv.txt"));
+        assertEquals("654321", AndroidKeyStoreHelper.retrievePin(null, CBC_KEY));
+    }
+
+    private void writeLegacyPin(String keyName) throws Exception {
+        Cipher cipher = Cipher.getInstance(CipherMode.CBC.transformation);
+        cipher.init(Cipher.ENCRYPT_MODE, simulation.keyStore.getKey(keyName));
+        byte[] encrypted = cipher.doFinal(PIN.getBytes(StandardCharsets.UTF_8));
+        fileStore.replace("pin_encrypted.txt", encrypted);
+        fileStore.replace("pin_iv.txt", cipher.getIV());
+    }
+
+    private void restart() {
+        AndroidKeyStoreHelper.setBackends(simulation.keyStore, fileStore, simulation.keyguard);
+        authenticate();
+    }
+
+    private void authenticate() {
+        simulation.keyStore.onUserAuthenticated();
+        AndroidKeyStoreHelper.onUserAuthenticated();
+    }
+
+    private static KeyOptions options(CipherMode cipherMode, boolean envelope) {
+        return new KeyOptions(30, false, cipherMode, envelope);
+    }
+}
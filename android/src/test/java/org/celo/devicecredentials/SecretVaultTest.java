@@ -0,0 +1,185 @@
+package org.celo.devicecredentials;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The vault file format: what is saved is loaded back unchanged, and the files written by the
+ * earlier vault and record versions can still be read.
+ */
+public class SecretVaultTest {
+    private static final String KEY_NAME = "key";
+    private static final int MAGIC = 0x52564c54;
+    private static final byte[] IV = {1, 2, 3, 4};
+    private static final byte[] CIPHER_TEXT = {5, 6, 7, 8, 9};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void loadsAnEmptyVaultWhenNothingWasStored() throws Exception {
+        SecretVault vault = SecretVault.load(fileStore(), KEY_NAME);
+        assertNotNull(vault);
+        assertTrue(vault.slots().isEmpty());
+        assertFalse(vault.isEnvelope());
+        assertNull(vault.getWrappedDataKey());
+    }
+
+    @Test
+    public void roundTripsRecordsFlagsAndTheWrappedDataKey() throws Exception {
+        FileStore fileStore = fileStore();
+        SecretVault vault = SecretVault.load(fileStore, KEY_NAME);
+        vault.reset(true);
+        vault.setWrappedDataKey(new SecretVault.Record(CipherMode.GCM, IV, CIPHER_TEXT));
+        vault.put("cbc", new SecretVault.Record(CipherMode.CBC, IV, CIPHER_TEXT, false, 10, 20));
+        vault.put("gcm", new SecretVault.Record(CipherMode.GCM, IV, CIPHER_TEXT, true, 30, 40));
+        assertTrue(vault.save(fileStore));
+
+        SecretVault loaded = SecretVault.load(fileStore, KEY_NAME);
+        assertNotNull(loaded);
+        assertTrue(loaded.isEnvelope());
+        assertRecord(loaded.getWrappedDataKey(), CipherMode.GCM, false,
+                SecretVault.UNKNOWN_TIME, SecretVault.UNKNOWN_TIME);
+        assertEquals(2, loaded.slots().size());
+        assertRecord(loaded.get("cbc"), CipherMode.CBC, false, 10, 20);
+        assertRecord(loaded.get("gcm"), CipherMode.GCM, true, 30, 40);
+    }
+
+    @Test
+    public void resetDropsEverythingAndSwitchesEnvelopeMode() throws Exception {
+        FileStore fileStore = fileStore();
+        SecretVault vault = SecretVault.load(fileStore, KEY_NAME);
+        vault.reset(true);
+        vault.setWrappedDataKey(new SecretVault.Record(CipherMode.GCM, IV, CIPHER_TEXT));
+        vault.put("slot", new SecretVault.Record(CipherMode.GCM, IV, CIPHER_TEXT, true));
+        assertTrue(vault.save(fileStore));
+
+        assertTrue(vault.reset(false));
+        assertFalse(vault.reset(false));
+        assertTrue(vault.save(fileStore));
+        SecretVault loaded = SecretVault.load(fileStore, KEY_NAME);
+        assertFalse(loaded.isEnvelope());
+        assertNull(loaded.getWrappedDataKey());
+        assertTrue(loaded.slots().isEmpty());
+    }
+
+    @Test
+    public void readsVersion1VaultsWithVersion1Records() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeByte(1);
+        out.writeInt(1);
+        out.writeUTF("pin");
+        out.writeByte(1);
+        writeIvAndCipherText(out);
+
+        SecretVault vault = write(bytes);
+        assertFalse(vault.isEnvelope());
+        assertNull(vault.getWrappedDataKey());
+        assertRecord(vault.get("pin"), CipherMode.CBC, false, SecretVault.UNKNOWN_TIME,
+                SecretVault.UNKNOWN_TIME);
+    }
+
+    @Test
+    public void readsRecordVersions2To4() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeByte(2);
+        out.writeByte(0);
+        out.writeInt(3);
+        // Version 2 adds the cipher mode.
+        out.writeUTF("v2");
+        out.writeByte(2);
+        out.writeByte(CipherMode.GCM.id);
+        writeIvAndCipherText(out);
+        // Version 3 adds the flags.
+        out.writeUTF("v3");
+        out.writeByte(3);
+        out.writeByte(CipherMode.GCM.id);
+        out.writeByte(1);
+        writeIvAndCipherText(out);
+        // Version 4 adds the timestamps.
+        out.writeUTF("v4");
+        out.writeByte(4);
+        out.writeByte(CipherMode.CBC.id);
+        out.writeByte(0);
+        out.writeLong(100);
+        out.writeLong(200);
+        writeIvAndCipherText(out);
+
+        SecretVault vault = write(bytes);
+        assertRecord(vault.get("v2"), CipherMode.GCM, false, SecretVault.UNKNOWN_TIME,
+                SecretVault.UNKNOWN_TIME);
+        assertRecord(vault.get("v3"), CipherMode.GCM, true, SecretVault.UNKNOWN_TIME,
+                SecretVault.UNKNOWN_TIME);
+        assertRecord(vault.get("v4"), CipherMode.CBC, false, 100, 200);
+    }
+
+    @Test
+    public void refusesNewerVersionsAndOtherFiles() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeByte(3);
+        assertNull(write(bytes));
+
+        bytes = new ByteArrayOutputStream();
+        out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeByte(2);
+        out.writeByte(0);
+        out.writeInt(1);
+        out.writeUTF("slot");
+        out.writeByte(5);
+        assertNull(write(bytes));
+
+        bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeInt(0x12345678);
+        assertNull(write(bytes));
+    }
+
+    private FileStore fileStore() throws IOException {
+        return new FileStore(folder.getRoot());
+    }
+
+    /**
+     * Stores bytes as the vault of {@link #KEY_NAME} and loads it.
+     */
+    private SecretVault write(ByteArrayOutputStream bytes) throws IOException {
+        FileStore fileStore = fileStore();
+        fileStore.replace(SecretVault.fileNameFor(KEY_NAME), bytes.toByteArray());
+        return SecretVault.load(fileStore, KEY_NAME);
+    }
+
+    private static void writeIvAndCipherText(DataOutputStream out) throws IOException {
+        out.writeInt(IV.length);
+        out.write(IV);
+        out.writeInt(CIPHER_TEXT.length);
+        out.write(CIPHER_TEXT);
+    }
+
+    private static void assertRecord(SecretVault.Record record, CipherMode mode,
+                                     boolean usesDataKey, long createdAt, long updatedAt) {
+        assertNotNull(record);
+        assertEquals(mode, record.mode);
+        assertEquals(usesDataKey, record.usesDataKey);
+        assertEquals(createdAt, record.createdAt);
+        assertEquals(updatedAt, record.updatedAt);
+        assertArrayEquals(IV, record.iv);
+        assertArrayEquals(CIPHER_TEXT, record.cipherText);
+    }
+}
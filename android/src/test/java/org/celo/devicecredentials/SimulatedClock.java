@@ -0,0 +1,45 @@
+package org.celo.devicecredentials;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A clock which only moves when told to, so authentication windows, cache expiry and timeouts
+ * can be crossed deterministically. Scheduled tasks run on the thread advancing the clock, once
+ * their time has come.
+ */
+class SimulatedClock extends Clock {
+    private final AtomicLong elapsedRealtime = new AtomicLong();
+    private final long epochMillisAtStart;
+    private final SimulatedScheduler scheduler = new SimulatedScheduler(this);
+
+    SimulatedClock(long epochMillisAtStart) {
+        this.epochMillisAtStart = epochMillisAtStart;
+    }
+
+    @Override
+    long elapsedRealtime() {
+        return elapsedRealtime.get();
+    }
+
+    @Override
+    long currentTimeMillis() {
+        return epochMillisAtStart + elapsedRealtime.get();
+    }
+
+    @Override
+    SimulatedScheduler scheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Moves the time forward by millis, then runs the tasks which became due, in order.
+     */
+    void advance(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Time cannot go backwards");
+        }
+        elapsedRealtime.addAndGet(millis);
+        scheduler.runDueTasks();
+    }
+}
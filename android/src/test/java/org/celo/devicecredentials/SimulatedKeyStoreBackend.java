@@ -0,0 +1,176 @@
+package org.celo.devicecredentials;
+
+import android.security.keystore.KeyPermanentlyInvalidatedException;
+import android.security.keystore.UserNotAuthenticatedException;
+import android.support.annotation.Nullable;
+
+import javax.crypto.KeyGenerator;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.Key;
+import java.security.KeyStoreException;
+import java.security.UnrecoverableKeyException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps keys in memory like {@link SoftwareKeyStoreBackend}, but enforces the rules the Android
+ * Key Store applies to keys which need the user to authenticate:
+ * <ul>
+ * <li>keys can only be created while the device is secure,</li>
+ * <li>a key can only be used within its authentication validity duration of the user last
+ * confirming their credentials, and never if that duration is 0 or less, failing with
+ * {@link UserNotAuthenticatedException} otherwise,</li>
+ * <li>removing the screen lock makes every key unrecoverable, failing with
+ * {@link UnrecoverableKeyException} when the key is looked up,</li>
+ * <li>enrolling a new biometric permanently invalidates the keys created with
+ * invalidateKeyByNewBiometricEnrollment, failing with {@link KeyPermanentlyInvalidatedException}
+ * when the key is used.</li>
+ * </ul>
+ * Time comes from a {@link SimulatedClock}, so windows close exactly when the test says.
+ */
+class SimulatedKeyStoreBackend implements KeyStoreBackend {
+    private static final int KEY_SIZE_BITS = 256;
+    private static final long NEVER_AUTHENTICATED = Long.MIN_VALUE;
+
+    private final SimulatedClock clock;
+    private final Map<String, SimulatedKey> keysByName = new ConcurrentHashMap<>();
+    private final Map<Key, SimulatedKey> keys = new ConcurrentHashMap<>();
+    private volatile boolean deviceSecure = true;
+    private volatile long authenticatedAt = NEVER_AUTHENTICATED;
+
+    SimulatedKeyStoreBackend(SimulatedClock clock) {
+        this.clock = clock;
+    }
+
+    boolean isDeviceSecure() {
+        return deviceSecure;
+    }
+
+    /**
+     * Sets or removes the screen lock. Removing it makes every existing key unrecoverable.
+     */
+    synchronized void setDeviceSecure(boolean secure) {
+        if (deviceSecure && !secure) {
+            for (SimulatedKey key : keysByName.values()) {
+                key.unrecoverable = true;
+            }
+            authenticatedAt = NEVER_AUTHENTICATED;
+        }
+        deviceSecure = secure;
+    }
+
+    /**
+     * The user confirmed their credentials, which opens the window of every key.
+     */
+    void onUserAuthenticated() {
+        authenticatedAt = clock.elapsedRealtime();
+    }
+
+    /**
+     * A new biometric was enrolled, which invalidates the keys created to be invalidated by it.
+     */
+    synchronized void enrollBiometric() {
+        for (SimulatedKey key : keysByName.values()) {
+            if (key.options.invalidateKeyByNewBiometricEnrollment) {
+                key.invalidated = true;
+            }
+        }
+    }
+
+    @Nullable
+    @Override
+    public Key getKey(String keyName) throws UnrecoverableKeyException {
+        SimulatedKey simulatedKey = keysByName.get(keyName);
+        if (simulatedKey == null) {
+            return null;
+        }
+        if (simulatedKey.unrecoverable) {
+            throw new UnrecoverableKeyException("Failed to obtain information about key");
+        }
+        return simulatedKey.key;
+    }
+
+    @Override
+    public synchronized void generateKey(String keyName, KeyOptions options)
+            throws GeneralSecurityException {
+        if (!deviceSecure) {
+            throw new InvalidAlgorithmParameterException("Secure lock screen must be enabled to"
+                    + " create keys requiring user authentication");
+        }
+        KeyGenerator keyGenerator = CryptoPool.keyGenerator("AES", null);
+        keyGenerator.init(KEY_SIZE_BITS);
+        SimulatedKey simulatedKey = new SimulatedKey(keyGenerator.generateKey(), options);
+        SimulatedKey previous = keysByName.put(keyName, simulatedKey);
+        if (previous != null) {
+            keys.remove(previous.key);
+        }
+        keys.put(simulatedKey.key, simulatedKey);
+    }
+
+    @Override
+    public synchronized void deleteKey(String keyName) {
+        SimulatedKey removed = keysByName.remove(keyName);
+        if (removed != null) {
+            keys.remove(removed.key);
+        }
+    }
+
+    @Override
+    public boolean containsAlias(String keyName) {
+        return keysByName.containsKey(keyName);
+    }
+
+    @Override
+    public List<String> aliases() {
+        return new ArrayList<>(keysByName.keySet());
+    }
+
+    @Override
+    public KeyDescription describeKey(String keyName, Key key) throws GeneralSecurityException {
+        SimulatedKey simulatedKey = keysByName.get(keyName);
+        if (simulatedKey == null) {
+            throw new KeyStoreException("No key named " + keyName);
+        }
+        return new KeyDescription(simulatedKey.options.cipherMode,
+                simulatedKey.options.reauthenticationTimeoutInSecs);
+    }
+
+    @Override
+    public void checkKeyUsable(Key key)
+            throws UserNotAuthenticatedException, KeyPermanentlyInvalidatedException {
+        SimulatedKey simulatedKey = keys.get(key);
+        if (simulatedKey == null) {
+            // A data key, or a key deleted since it was looked up, which the caller still holds.
+            return;
+        }
+        if (simulatedKey.invalidated || simulatedKey.unrecoverable) {
+            throw new KeyPermanentlyInvalidatedException("Key permanently invalidated");
+        }
+        long validityMillis = simulatedKey.options.reauthenticationTimeoutInSecs * 1000L;
+        long lastAuthenticatedAt = authenticatedAt;
+        if (validityMillis <= 0 || lastAuthenticatedAt == NEVER_AUTHENTICATED
+                || clock.elapsedRealtime() - lastAuthenticatedAt >= validityMillis) {
+            throw new UserNotAuthenticatedException("User not authenticated");
+        }
+    }
+
+    @Override
+    public void prewarm() throws GeneralSecurityException {
+        CryptoPool.keyGenerator("AES", null);
+    }
+
+    private static class SimulatedKey {
+        final Key key;
+        final KeyOptions options;
+        volatile boolean invalidated;
+        volatile boolean unrecoverable;
+
+        SimulatedKey(Key key, KeyOptions options) {
+            this.key = key;
+            this.options = options;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package org.celo.devicecredentials;
+
+import android.app.Activity;
+import android.content.Context;
+import android.support.annotation.Nullable;
+
+import com.facebook.react.bridge.ActivityEventListener;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A screen lock driven by the test instead of the user. The lock screens, prompts and settings
+ * the module starts are queued, and stay up until the test answers them, in order, through
+ * {@link #confirmCredentials}, {@link #answerPrompt} and {@link #finishSettings}. Results are
+ * delivered to the given listener, normally the one the module registered with its context, as
+ * the host activity would.
+ */
+class SimulatedKeyguard implements Keyguard {
+    private final SimulatedKeyStoreBackend keyStore;
+    private final Deque<PendingActivity> lockScreens = new ArrayDeque<>();
+    private final Deque<PendingPrompt> prompts = new ArrayDeque<>();
+    private final Deque<PendingActivity> settings = new ArrayDeque<>();
+    @Nullable
+    private RuntimeException lockScreenFailure;
+
+    SimulatedKeyguard(SimulatedKeyStoreBackend keyStore) {
+        this.keyStore = keyStore;
+    }
+
+    @Override
+    public boolean isDeviceSecure(Context context) {
+        return keyStore.isDeviceSecure();
+    }
+
+    @Override
+    public synchronized boolean authenticateUser(Activity activity, int requestCode) {
+        if (lockScreenFailure != null) {
+            throw lockScreenFailure;
+        }
+        if (!keyStore.isDeviceSecure()) {
+            return false;
+        }
+        lockScreens.add(new PendingActivity(activity, requestCode));
+        return true;
+    }
+
+    @Override
+    public synchronized void makeDeviceSecure(
+            Activity activity, String description, String buttonLabel, int requestCode,
+            AndroidKeyStoreHelper.MakeDeviceSecureCallback callback) {
+        prompts.add(new PendingPrompt(new PendingActivity(activity, requestCode), callback));
+    }
+
+    /**
+     * Starting a lock screen throws failure, as when the activity cannot be launched, until this
+     * is called again with null.
+     */
+    synchronized void failLockScreens(@Nullable RuntimeException failure) {
+        lockScreenFailure = failure;
+    }
+
+    synchronized int pendingLockScreens() {
+        return lockScreens.size();
+    }
+
+    synchronized int pendingPrompts() {
+        return prompts.size();
+    }
+
+    synchronized int pendingSettings() {
+        return settings.size();
+    }
+
+    /**
+     * The user confirms their credentials in the oldest lock screen, which opens the
+     * authentication window of every key, or backs out of it.
+     * @return false if no lock screen is showing
+     */
+    boolean confirmCredentials(ActivityEventListener listener, boolean confirmed) {
+        PendingActivity lockScreen;
+        synchronized (this) {
+            lockScreen = lockScreens.poll();
+        }
+        if (lockScreen == null) {
+            return false;
+        }
+        if (confirmed) {
+            keyStore.onUserAuthenticated();
+        }
+        lockScreen.finish(listener, confirmed ? Activity.RESULT_OK : Activity.RESULT_CANCELED);
+        return true;
+    }
+
+    /**
+     * The user answers the oldest prompt to set up a screen lock. Accepting opens the settings,
+     * see {@link #finishSettings}.
+     * @return false if no prompt is showing
+     */
+    boolean answerPrompt(boolean accepted) {
+        PendingPrompt prompt;
+        synchronized (this) {
+            prompt = prompts.poll();
+            if (prompt != null && accepted) {
+                settings.add(prompt.settings);
+            }
+        }
+        if (prompt == null) {
+            return false;
+        }
+        if (accepted) {
+            prompt.callback.onUserTransitionToSetupDeviceLock();
+        } else {
+            prompt.callback.onUserCancelled();
+        }
+        return true;
+    }
+
+    /**
+     * The user leaves the oldest settings screen, having set up a screen lock or not.
+     * @return false if no settings screen is showing
+     */
+    boolean finishSettings(ActivityEventListener listener, boolean lockSet) {
+        PendingActivity setting;
+        synchronized (this) {
+            setting = settings.poll();
+        }
+        if (setting == null) {
+            return false;
+        }
+        if (lockSet) {
+            keyStore.setDeviceSecure(true);
+        }
+        setting.finish(listener, lockSet ? Activity.RESULT_OK : Activity.RESULT_CANCELED);
+        return true;
+    }
+
+    private static class PendingActivity {
+        final Activity activity;
+        final int requestCode;
+
+        PendingActivity(Activity activity, int requestCode) {
+            this.activity = activity;
+            this.requestCode = requestCode;
+        }
+
+        void finish(ActivityEventListener listener, int resultCode) {
+            listener.onActivityResult(activity, requestCode, resultCode, null);
+        }
+    }
+
+    private static class PendingPrompt {
+        final PendingActivity settings;
+        final AndroidKeyStoreHelper.MakeDeviceSecureCallback callback;
+
+        PendingPrompt(PendingActivity settings,
+                      AndroidKeyStoreHelper.MakeDeviceSecureCallback callback) {
+            this.settings = settings;
+            this.callback = callback;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package org.celo.devicecredentials;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The scheduler of a {@link SimulatedClock}. Tasks don't get a thread of their own, they run on
+ * the thread calling {@link SimulatedClock#advance} once the clock reaches their time, so a
+ * timeout fires exactly when the test moves the clock past it. A repeating task runs once for
+ * every period the clock is moved past.
+ */
+class SimulatedScheduler extends AbstractExecutorService implements ScheduledExecutorService {
+    private final SimulatedClock clock;
+    private final PriorityQueue<Task<?>> tasks = new PriorityQueue<>();
+    private long nextSequence;
+    private boolean shutdown;
+
+    SimulatedScheduler(SimulatedClock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * The tasks which have neither run nor been cancelled yet.
+     */
+    synchronized int pendingCount() {
+        return tasks.size();
+    }
+
+    /**
+     * Runs, in order, every task whose time has come. Tasks scheduled by those tasks run too if
+     * they are already due.
+     */
+    void runDueTasks() {
+        while (true) {
+            Task<?> task;
+            synchronized (this) {
+                task = tasks.peek();
+                if (task == null || task.dueAt > clock.elapsedRealtime()) {
+                    return;
+                }
+                tasks.poll();
+            }
+            task.run();
+        }
+    }
+
+    private synchronized void reschedule(Task<?> task) {
+        if (!task.isCancelled() && !shutdown) {
+            tasks.add(task);
+        }
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        return schedule(Executors.callable(command), delay, unit);
+    }
+
+    @Override
+    public synchronized <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay,
+                                                        TimeUnit unit) {
+        return add(new Task<>(callable, dueAt(delay, unit), 0, nextSequence++));
+    }
+
+    /**
+     * Runs command every period, catching up with one run per period when the clock is moved
+     * past several at once.
+     */
+    @Override
+    public synchronized ScheduledFuture<?> scheduleAtFixedRate(Runnable command,
+                                                               long initialDelay, long period,
+                                                               TimeUnit unit) {
+        return schedulePeriodic(command, initialDelay, unit.toMillis(period), unit);
+    }
+
+    /**
+     * Runs command again delay after each run. Tasks take no simulated time, so when the clock
+     * is moved past several delays at once the command runs once for each of them, as with a
+     * fixed rate.
+     */
+    @Override
+    public synchronized ScheduledFuture<?> scheduleWithFixedDelay(Runnable command,
+                                                                  long initialDelay, long delay,
+                                                                  TimeUnit unit) {
+        return schedulePeriodic(command, initialDelay, unit.toMillis(delay), unit);
+    }
+
+    private ScheduledFuture<?> schedulePeriodic(Runnable command, long initialDelay,
+                                                long periodMillis, TimeUnit unit) {
+        if (periodMillis <= 0) {
+            throw new IllegalArgumentException("The period must be positive");
+        }
+        return add(new Task<>(Executors.<Void>callable(command, null),
+                dueAt(initialDelay, unit), periodMillis, nextSequence++));
+    }
+
+    private long dueAt(long delay, TimeUnit unit) {
+        return clock.elapsedRealtime() + unit.toMillis(Math.max(0, delay));
+    }
+
+    private <V> Task<V> add(Task<V> task) {
+        if (shutdown) {
+            throw new RejectedExecutionException("Shut down");
+        }
+        tasks.add(task);
+        return task;
+    }
+
+    /**
+     * Runs command the next time the clock is advanced, even by 0.
+     */
+    @Override
+    public void execute(Runnable command) {
+        schedule(command, 0, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        shutdown = true;
+    }
+
+    @Override
+    public synchronized List<Runnable> shutdownNow() {
+        shutdown = true;
+        List<Runnable> notRun = new ArrayList<>(tasks);
+        tasks.clear();
+        return notRun;
+    }
+
+    @Override
+    public synchronized boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public synchronized boolean isTerminated() {
+        return shutdown && tasks.isEmpty();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) {
+        // Nothing runs unless the clock is advanced, so waiting cannot change anything.
+        return isTerminated();
+    }
+
+    private synchronized void remove(Task<?> task) {
+        tasks.remove(task);
+    }
+
+    private class Task<V> extends FutureTask<V> implements ScheduledFuture<V> {
+        // Only changed while the task is out of the queue, between two runs.
+        long dueAt;
+        // 0 for a task which runs once.
+        final long periodMillis;
+        // Keeps tasks due at the same time in the order they were scheduled.
+        final long sequence;
+
+        Task(Callable<V> callable, long dueAt, long periodMillis, long sequence) {
+            super(callable);
+            this.dueAt = dueAt;
+            this.periodMillis = periodMillis;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            if (periodMillis == 0) {
+                super.run();
+            } else if (runAndReset()) {
+                // A run which threw completes the task exceptionally and stops it repeating.
+                dueAt += periodMillis;
+                reschedule(this);
+            }
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueAt - clock.elapsedRealtime(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            if (other == this) {
+                return 0;
+            }
+            if (other instanceof Task) {
+                Task<?> task = (Task<?>) other;
+                if (dueAt != task.dueAt) {
+                    return dueAt < task.dueAt ? -1 : 1;
+                }
+                return sequence < task.sequence ? -1 : 1;
+            }
+            long delay = getDelay(TimeUnit.MILLISECONDS);
+            long otherDelay = other.getDelay(TimeUnit.MILLISECONDS);
+            return delay < otherDelay ? -1 : delay == otherDelay ? 0 : 1;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                remove(this);
+            }
+            return cancelled;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package org.celo.devicecredentials;
+
+import org.junit.Test;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The simulated scheduler the timeouts run on in the other tests.
+ */
+public class SimulatedSchedulerTest {
+    private final SimulatedClock clock = new SimulatedClock(0);
+    private final AtomicInteger runs = new AtomicInteger();
+    private final Runnable count = new Runnable() {
+        @Override
+        public void run() {
+            runs.incrementAndGet();
+        }
+    };
+
+    @Test
+    public void delayedTaskRunsOnceItsTimeHasCome() {
+        clock.scheduler().schedule(count, 10, TimeUnit.SECONDS);
+        clock.advance(9999);
+        assertEquals(0, runs.get());
+        clock.advance(1);
+        assertEquals(1, runs.get());
+        clock.advance(60000);
+        assertEquals(1, runs.get());
+        assertEquals(0, clock.scheduler().pendingCount());
+    }
+
+    @Test
+    public void fixedRateTaskRunsOncePerPeriodPassed() {
+        clock.scheduler().scheduleAtFixedRate(count, 5, 10, TimeUnit.SECONDS);
+        clock.advance(4999);
+        assertEquals(0, runs.get());
+        clock.advance(1);
+        assertEquals(1, runs.get());
+        clock.advance(30000);
+        assertEquals(4, runs.get());
+        assertEquals(1, clock.scheduler().pendingCount());
+    }
+
+    @Test
+    public void cancelledRepeatingTaskStops() {
+        ScheduledFuture<?> future = clock.scheduler().scheduleWithFixedDelay(count, 0, 1,
+                TimeUnit.SECONDS);
+        clock.advance(2000);
+        assertEquals(3, runs.get());
+        assertTrue(future.cancel(false));
+        clock.advance(2000);
+        assertEquals(3, runs.get());
+        assertEquals(0, clock.scheduler().pendingCount());
+    }
+
+    @Test
+    public void repeatingTaskWhichThrowsStops() {
+        clock.scheduler().scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+                throw new IllegalStateException("Failed");
+            }
+        }, 0, 1, TimeUnit.SECONDS);
+        clock.advance(5000);
+        assertEquals(1, runs.get());
+        assertEquals(0, clock.scheduler().pendingCount());
+    }
+}
@@ -0,0 +1,60 @@
+package org.celo.devicecredentials;
+
+import java.io.File;
+
+/**
+ * Runs the module against a simulated keystore, screen lock and clock, so the flows which depend
+ * on the user authenticating can be driven deterministically and at volume, without a device:
+ * authentication windows closing, keys becoming unrecoverable once the screen lock is removed,
+ * the lock screen being confirmed or cancelled and the prompt to set up a screen lock.
+ *
+ * Only one simulation can be installed at a time, as the helper's backends are process wide.
+ */
+final class Simulation {
+    private static final Object lock = new Object();
+    private static Simulation installed;
+
+    final SimulatedClock clock;
+    final SimulatedKeyStoreBackend keyStore;
+    final SimulatedKeyguard keyguard;
+
+    private Simulation(SimulatedClock clock) {
+        this.clock = clock;
+        keyStore = new SimulatedKeyStoreBackend(clock);
+        keyguard = new SimulatedKeyguard(keyStore);
+    }
+
+    /**
+     * Replaces the Android Key Store, the screen lock and the clock with simulated ones, storing
+     * files in directory. The device starts out secure with the user never having
+     * authenticated.
+     */
+    static Simulation install(File directory) {
+        synchronized (lock) {
+            if (installed != null) {
+                throw new IllegalStateException("A simulation is already installed");
+            }
+            Simulation simulation = new Simulation(new SimulatedClock(System.currentTimeMillis()));
+            Clock.set(simulation.clock);
+            AndroidKeyStoreHelper.setBackends(simulation.keyStore, new FileStore(directory),
+                    simulation.keyguard);
+            installed = simulation;
+            return simulation;
+        }
+    }
+
+    /**
+     * Goes back to the Android Key Store, the device's screen lock and the system clock.
+     */
+    static void uninstall() {
+        synchronized (lock) {
+            if (installed == null) {
+                return;
+            }
+            AndroidKeyStoreHelper.setBackends(new AndroidKeyStoreBackend(), null,
+                    new AndroidKeyguard());
+            Clock.set(Clock.SYSTEM);
+            installed = null;
+        }
+    }
+}
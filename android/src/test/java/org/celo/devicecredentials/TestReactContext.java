@@ -0,0 +1,104 @@
+package org.celo.devicecredentials;
+
+import android.app.Activity;
+import android.content.Intent;
+
+import com.facebook.react.bridge.ActivityEventListener;
+import com.facebook.react.bridge.ReactApplicationContext;
+
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A React context whose current activity is always the same, and which keeps track of the
+ * activity event listeners registered with it, so tests can deliver activity results to them as
+ * the host activity would and check that none is leaked. Work for the UI thread runs on a thread
+ * of its own.
+ */
+class TestReactContext extends ReactApplicationContext {
+    private final Activity activity;
+    private final Set<ActivityEventListener> activityEventListeners =
+            new CopyOnWriteArraySet<>();
+    private final ExecutorService uiThread = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "ui");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    TestReactContext(Activity activity) {
+        super(activity);
+        this.activity = activity;
+    }
+
+    @Override
+    public Activity getCurrentActivity() {
+        return activity;
+    }
+
+    @Override
+    public void runOnUiQueueThread(Runnable runnable) {
+        uiThread.execute(runnable);
+    }
+
+    /**
+     * Waits for the work posted to the UI thread so far.
+     */
+    void drainUiThread() throws InterruptedException {
+        try {
+            uiThread.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get();
+        } catch (ExecutionException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Override
+    public void addActivityEventListener(ActivityEventListener listener) {
+        super.addActivityEventListener(listener);
+        activityEventListeners.add(listener);
+    }
+
+    @Override
+    public void removeActivityEventListener(ActivityEventListener listener) {
+        super.removeActivityEventListener(listener);
+        activityEventListeners.remove(listener);
+    }
+
+    int activityEventListenerCount() {
+        return activityEventListeners.size();
+    }
+
+    /**
+     * Delivers activity results to every listener registered with this context, for
+     * {@link SimulatedKeyguard}.
+     */
+    ActivityEventListener activityResults() {
+        return new ActivityEventListener() {
+            @Override
+            public void onActivityResult(Activity activity, int requestCode, int resultCode,
+                                         Intent data) {
+                for (ActivityEventListener listener : activityEventListeners) {
+                    listener.onActivityResult(activity, requestCode, resultCode, data);
+                }
+            }
+
+            @Override
+            public void onNewIntent(Intent intent) {
+                for (ActivityEventListener listener : activityEventListeners) {
+                    listener.onNewIntent(intent);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,103 @@
+// @flow
+//
+// The TurboModule spec the JSI bindings are generated from on hosts with the new architecture
+// enabled. It follows ConfirmDeviceCredentialsModule in ./types, with integer arguments typed as
+// Int32 to match the Java signatures. The codegen only reads types declared in this file, so the
+// shapes of ./types are repeated here, with string unions widened to string.
+
+import { TurboModuleRegistry } from "react-native";
+import type { TurboModule } from "react-native/Libraries/TurboModule/RCTExport";
+import type { Double, Int32 } from "react-native/Libraries/Types/CodegenTypes";
+
+type KeyOptions = {|
+  reauthenticationTimeoutInSecs: Int32,
+  invalidateKeyByNewBiometricEnrollment?: boolean,
+  // "CBC" or "GCM"
+  cipherMode?: string,
+  envelope?: boolean,
+|};
+
+type PhaseMetrics = {|
+  count: Double,
+  totalMs: Double,
+  maxMs: Double,
+  buckets: Array<Double>,
+|};
+
+type Metrics = {|
+  bucketUpperBoundsMs: Array<Double>,
+  phases: {|
+    keystoreLoad: PhaseMetrics,
+    keyLookup: PhaseMetrics,
+    cipherInit: PhaseMetrics,
+    cipherDoFinal: PhaseMetrics,
+    fileRead: PhaseMetrics,
+    fileWrite: PhaseMetrics,
+    authentication: PhaseMetrics,
+    prewarm: PhaseMetrics,
+  |},
+|};
+
+type SecurityState = {|
+  isDeviceSecure: boolean,
+  // "valid", "invalidated" or "missing" for each key name
+  keys: { [keyName: string]: string },
+|};
+
+type SecretInfo = {|
+  // "CBC" or "GCM"
+  cipherMode: string,
+  envelope: boolean,
+  createdAt: Double,
+  updatedAt: Double,
+  encryptedSize: Int32,
+|};
+
+export interface Spec extends TurboModule {
+  +getConstants: () => {| initialIsDeviceSecure: boolean |};
+  +isDeviceSecure: () => Promise<boolean>;
+  +isDeviceSecureSync: () => boolean;
+  +keyExistsSync: (keyName: string) => boolean;
+  +makeDeviceSecure: (message: string, actionButtonLabel: string) => Promise<boolean>;
+  +prewarm: (keyName: ?string) => Promise<boolean>;
+  +keystoreInit: (
+    keyName: string,
+    reauthenticationTimeoutInSecs: Int32,
+    invalidateKeyByNewBiometricEnrollment: boolean
+  ) => Promise<boolean>;
+  +keystoreInitWithOptions: (keyName: string, options: KeyOptions) => Promise<boolean>;
+  +deleteKey: (keyName: string) => Promise<boolean>;
+  +listKeys: (prefix: ?string) => Promise<Array<string>>;
+  +keysExist: (keyNames: $ReadOnlyArray<string>) => Promise<{ [keyName: string]: boolean }>;
+  +deleteKeys: (keyNames: $ReadOnlyArray<string>) => Promise<Array<string>>;
+  +deleteKeysWithPrefix: (prefix: string) => Promise<Array<string>>;
+  +rotateKey: (oldKeyName: string, newKeyName: string, options: KeyOptions) => Promise<boolean>;
+  +observeSecurityState: (keyNames: $ReadOnlyArray<string>) => Promise<SecurityState>;
+  +stopObservingSecurityState: () => Promise<boolean>;
+  +storePin: (keyName: string, pinValue: string) => Promise<boolean>;
+  +retrievePin: (keyName: string) => Promise<string>;
+  +storeSecret: (keyName: string, slot: string, value: string) => Promise<boolean>;
+  +storeSecrets: (keyName: string, secrets: { [slot: string]: string }) => Promise<boolean>;
+  +retrieveSecret: (keyName: string, slot: string) => Promise<?string>;
+  +retrieveSecrets: (
+    keyName: string,
+    slots: $ReadOnlyArray<string>
+  ) => Promise<{ [slot: string]: ?string }>;
+  +deleteSecret: (keyName: string, slot: string) => Promise<boolean>;
+  +hasSecret: (keyName: string, slot: ?string) => Promise<boolean>;
+  +getSecretInfo: (keyName: string, slot: ?string) => Promise<?SecretInfo>;
+  +setSecretCacheTtl: (ttlInSecs: Int32) => Promise<boolean>;
+  +getAuthSessionRemainingMs: (keyName: string) => Promise<Double>;
+  +encryptFile: (keyName: string, srcPath: string, dstPath: string) => Promise<boolean>;
+  +decryptFile: (keyName: string, srcPath: string, dstPath: string) => Promise<boolean>;
+  +getMetrics: () => Promise<Metrics>;
+  +resetMetrics: () => Promise<boolean>;
+  +addListener: (eventName: string) => void;
+  +removeListeners: (count: Int32) => void;
+}
+
+// React Native versions without TurboModules don't export the registry at all, ./index then falls
+// back to NativeModules.
+export default ((TurboModuleRegistry != null
+  ? TurboModuleRegistry.get<Spec>("ConfirmDeviceCredentials")
+  : null): ?Spec);
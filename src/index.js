@@ -1,8 +1,14 @@
 // @flow
 
 import { Platform, NativeModules } from "react-native";
+import NativeConfirmDeviceCredentials from "./NativeConfirmDeviceCredentials";
 import type { ConfirmDeviceCredentialsNativeModule } from "./types";
 
-const { ConfirmDeviceCredentials } = NativeModules;
+// TurboModules only expose their constants through getConstants(), the legacy module has them as
+// properties.
+const ConfirmDeviceCredentials =
+  NativeConfirmDeviceCredentials != null && NativeConfirmDeviceCredentials.initialIsDeviceSecure === undefined
+    ? Object.assign(Object.create(NativeConfirmDeviceCredentials), NativeConfirmDeviceCredentials.getConstants())
+    : NativeModules.ConfirmDeviceCredentials;
 
-export default NativeModules.ConfirmDeviceCredentials;
+export default ConfirmDeviceCredentials;
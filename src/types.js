@@ -16,16 +16,147 @@
  *    This won't prompt the user to make their device secure.
  * 5. `retrievePin` will return the plain-text PIN. It will prompt the user to reauthenticate, if required. This
  *    won't prompt the user to make their device secure.
+ * 6. `storeSecret`/`retrieveSecret` work like `storePin`/`retrievePin` but take a slot name, so several secrets can
+ *    be stored under the same key. `storePin`/`retrievePin` use the default slot. `deleteSecret` removes a slot and
+ *    does not prompt the user.
+ * 7. `storeSecrets`/`retrieveSecrets` store or retrieve several slots at once, prompting the user at most once.
+ *    `retrieveSecrets` resolves to an object mapping each slot to its secret, or null if the slot is empty.
+ * 8. `keystoreInitWithOptions` is `keystoreInit` with its configuration passed as an object. Setting `cipherMode` to
+ *    "GCM" creates a key for authenticated encryption. Secrets stored with it which have been tampered with are
+ *    rejected with SECRET_INTEGRITY_ERROR instead of decrypting to garbage.
+ * 9. `setSecretCacheTtl` opts into keeping decrypted secrets in memory for the given number of seconds, capped by what
+ *    is left of the key's authentication window. Nothing is cached while that is not known, e.g. before the user went
+ *    through this module's lock screen. The cache is cleared when the app goes to the background. Pass 0 to disable it.
+ * 10. `getMetrics` reports how many times each phase (keystore load, key lookup, cipher init/doFinal, file I/O and
+ *     time spent in the authentication screen) ran and how long it took, for field telemetry.
+ * 11. `encryptFile`/`decryptFile` encrypt or decrypt a whole file with a key, streaming it so memory use doesn't
+ *     depend on the file size. Progress is reported through `fileCryptoProgress` events on a NativeEventEmitter.
+ *     Prefer CBC keys for large files, the keystore has to buffer the whole file to decrypt with GCM. With GCM keys
+ *     files larger than 16 MB are refused and the promise resolves to false.
+ * 12. `prewarm` loads the keystore, resolves the cipher providers and looks up the given key in the background, so
+ *     the first real operation after a cold start is faster. Passing `true` to the `RNConfirmDeviceCredentialsPackage`
+ *     constructor does the same, without a key, as soon as the module is created. Compare the `prewarm` phase with
+ *     `keystoreLoad` and `keyLookup` in `getMetrics` to see what it saves.
+ * 13. `isDeviceSecureSync`/`keyExistsSync` return their result directly instead of a promise, for deciding the first
+ *     screen without waiting on the bridge. `initialIsDeviceSecure` is a constant holding the device secure state at
+ *     startup. They block the JS thread, `keyExistsSync` on a call into the keystore every time.
+ * 14. Setting `envelope` in `keystoreInitWithOptions` encrypts the key's secrets in process with a data key, which is
+ *     stored wrapped by the keystore key. Reading or writing any number of secrets then needs one keystore operation,
+ *     to unwrap the data key, and none while it is kept in memory. It is kept for the key's reauthentication timeout
+ *     at most and forgotten when the app goes to the background.
+ * 15. `listKeys` resolves to the names of the keys starting with a prefix, or of all keys for null. `keysExist` checks
+ *     several names against a single listing of the keystore. `deleteKeys`/`deleteKeysWithPrefix` delete keys by name
+ *     or by prefix along with the secrets stored under them, and resolve to the names of the keys deleted. An empty
+ *     prefix is rejected rather than deleting every key.
+ * 16. After the user confirms their credentials through this module, storing doesn't prompt again until the key's
+ *     reauthentication timeout has passed, and once it has passed, reads prompt right away instead of failing first.
+ *     `getAuthSessionRemainingMs` resolves to the time left in the key's window, 0 if it is known to be closed, or -1
+ *     if it is not known, e.g. after the app was in the background, where the user may have unlocked the device.
+ * 17. `rotateKey` moves every secret of a key to a new key created with the given options, re-encrypting them in the
+ *     background in batches under a single authentication, then deletes the old key. Progress is checkpointed, so
+ *     calling it again with the same keys after an interruption carries on where it stopped. The old key keeps
+ *     working until the promise resolves. The new key must not exist yet.
+ * 18. `observeSecurityState` resolves to whether the device is secure and whether each of the given keys is still
+ *     usable, then sends a `securityStateChanged` event on a NativeEventEmitter whenever that changes, e.g. because the
+ *     screen lock was removed. It is checked again only when the app resumes, the device is unlocked or the device
+ *     policy changes, so watching costs nothing otherwise.
+ * 19. On hosts with the new architecture the module is a TurboModule, created on first use and called through JSI.
+ *     Its spec in NativeConfirmDeviceCredentials.js must be kept in line with ConfirmDeviceCredentialsModule below.
+ * 20. `hasSecret` and `getSecretInfo` tell whether a slot, or the PIN for a null slot, holds a secret and describe it
+ *     from the stored record alone, so they never need the key or prompt the user. Times are 0 for secrets stored by
+ *     earlier versions.
  */
+type KeyOptions = {
+  reauthenticationTimeoutInSecs: number,
+  invalidateKeyByNewBiometricEnrollment?: boolean,
+  cipherMode?: "CBC" | "GCM",
+  envelope?: boolean,
+}
+
+type PhaseMetrics = {
+  count: number,
+  totalMs: number,
+  maxMs: number,
+  // One more entry than bucketUpperBoundsMs, the last one counts everything above the largest bound.
+  buckets: Array<number>,
+}
+
+type Metrics = {
+  bucketUpperBoundsMs: Array<number>,
+  phases: {
+    keystoreLoad: PhaseMetrics,
+    keyLookup: PhaseMetrics,
+    cipherInit: PhaseMetrics,
+    cipherDoFinal: PhaseMetrics,
+    fileRead: PhaseMetrics,
+    fileWrite: PhaseMetrics,
+    authentication: PhaseMetrics,
+    prewarm: PhaseMetrics,
+  },
+}
+
+type FileCryptoProgressEvent = {
+  srcPath: string,
+  dstPath: string,
+  processedBytes: number,
+  totalBytes: number,
+}
+
+type SecurityState = {
+  isDeviceSecure: boolean,
+  keys: { [keyName: string]: "valid" | "invalidated" | "missing" },
+}
+
+type SecretInfo = {
+  cipherMode: "CBC" | "GCM",
+  envelope: boolean,
+  // Milliseconds since the epoch, 0 if not known.
+  createdAt: number,
+  updatedAt: number,
+  encryptedSize: number,
+}
+
 type ConfirmDeviceCredentialsModule = {
   isDeviceSecure: () => Promise<boolean>,
+  // Constant, the state when the module was set up.
+  initialIsDeviceSecure: boolean,
+  isDeviceSecureSync: () => boolean,
+  keyExistsSync: (keyName: string) => boolean,
   makeDeviceSecure: (message: string, actionButtonLabel: string) => Promise<boolean>,
+  prewarm: (keyName: ?string) => Promise<boolean>,
   keystoreInit: (keyName: string, reauthenticationTimeoutInSecs: number, invalidateKeyByNewBiometricEnrollment: boolean) => Promise<boolean>,
+  keystoreInitWithOptions: (keyName: string, options: KeyOptions) => Promise<boolean>,
   deleteKey: (keyName: string) => Promise<boolean>,
+  listKeys: (prefix: ?string) => Promise<Array<string>>,
+  keysExist: (keyNames: Array<string>) => Promise<{ [keyName: string]: boolean }>,
+  deleteKeys: (keyNames: Array<string>) => Promise<Array<string>>,
+  deleteKeysWithPrefix: (prefix: string) => Promise<Array<string>>,
+  rotateKey: (oldKeyName: string, newKeyName: string, options: KeyOptions) => Promise<boolean>,
+  observeSecurityState: (keyNames: Array<string>) => Promise<SecurityState>,
+  stopObservingSecurityState: () => Promise<boolean>,
   storePin: (keyName: string, pinValue: string) => Promise<boolean>,
   retrievePin: (keyName: string) => Promise<string>,
+  storeSecret: (keyName: string, slot: string, value: string) => Promise<boolean>,
+  retrieveSecret: (keyName: string, slot: string) => Promise<?string>,
+  deleteSecret: (keyName: string, slot: string) => Promise<boolean>,
+  hasSecret: (keyName: string, slot: ?string) => Promise<boolean>,
+  getSecretInfo: (keyName: string, slot: ?string) => Promise<?SecretInfo>,
+  setSecretCacheTtl: (ttlInSecs: number) => Promise<boolean>,
+  getAuthSessionRemainingMs: (keyName: string) => Promise<number>,
+  encryptFile: (keyName: string, srcPath: string, dstPath: string) => Promise<boolean>,
+  decryptFile: (keyName: string, srcPath: string, dstPath: string) => Promise<boolean>,
+  getMetrics: () => Promise<Metrics>,
+  resetMetrics: () => Promise<boolean>,
+  storeSecrets: (keyName: string, secrets: { [slot: string]: string }) => Promise<boolean>,
+  retrieveSecrets: (keyName: string, slots: Array<string>) => Promise<{ [slot: string]: ?string }>,
 }
 
 export type {
-  ConfirmDeviceCredentialsModule
+  ConfirmDeviceCredentialsModule,
+  FileCryptoProgressEvent,
+  KeyOptions,
+  Metrics,
+  PhaseMetrics,
+  SecretInfo,
+  SecurityState
 }